@@ -0,0 +1,92 @@
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import miniJava.ErrorReporter;
+import miniJava.SyntacticAnalyzer.Scanner;
+import miniJava.SyntacticAnalyzer.Token;
+import miniJava.SyntacticAnalyzer.TokenType;
+
+// Scanner microbenchmark: scans a generated, identifier-heavy source of
+//  about the given size 15 times in one JVM and reports the best pass and
+//  the bytes allocated by the last one.
+//
+// The source is random identifiers drawn from a fixed vocabulary, with
+//  about one keyword in five and punctuation in between. A vocabulary of 0
+//  makes every identifier a new spelling.
+//
+//   javac -d out $(find pa1/src -name '*.java') pa1/bench/ScannerBench.java
+//   java -cp out ScannerBench [vocabulary=5000] [megabytes=8]
+public class ScannerBench {
+	private static final String[] KEYWORDS = { "class", "public", "private", "static", "int", "boolean", "void",
+			"return", "if", "else", "while", "new", "this", "true", "false", "null" };
+	private static final String[] PUNCTUATION = { " ", " ", "\n", ";", ".", "(", ")", ", ", " = " };
+	private static final int PASSES = 15;
+
+	public static void main(String[] args) {
+		int vocabulary = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		byte[] source = generate(new Random(520), vocabulary, megabytes * 1000000);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long best = Long.MAX_VALUE;
+		long allocated = 0;
+		int tokens = 0;
+
+		for (int pass = 0; pass < PASSES; pass++) {
+			long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+
+			Scanner scanner = new Scanner(new ByteArrayInputStream(source), new ErrorReporter());
+			Token t;
+			tokens = 0;
+			while ((t = scanner.scan()) != null && t.getTokenType() != TokenType.EOT) {
+				tokens++;
+			}
+
+			best = Math.min(best, System.nanoTime() - start);
+			allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+		}
+
+		System.out.printf("%d tokens, best %.1f ms, %.1f MB/s, %.1f MB allocated per pass%n", tokens, best / 1e6,
+				source.length / 1e6 / (best / 1e9), allocated / 1e6);
+	}
+
+	private static byte[] generate(Random random, int vocabulary, int size) {
+		String[] names = new String[vocabulary];
+		for (int i = 0; i < vocabulary; i++) {
+			names[i] = name(random);
+		}
+
+		StringBuilder source = new StringBuilder(size + 64);
+		while (source.length() < size) {
+			if (random.nextInt(5) == 0) {
+				source.append(KEYWORDS[random.nextInt(KEYWORDS.length)]);
+			} else if (vocabulary == 0) {
+				source.append(name(random));
+			} else {
+				source.append(names[random.nextInt(vocabulary)]);
+			}
+			source.append(PUNCTUATION[random.nextInt(PUNCTUATION.length)]);
+		}
+
+		return source.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	// 3 to 14 letters, capitalized so it never spells a keyword
+	private static String name(Random random) {
+		int length = 3 + random.nextInt(12);
+		StringBuilder name = new StringBuilder(length);
+
+		name.append((char) ('A' + random.nextInt(26)));
+		for (int i = 1; i < length; i++) {
+			int c = random.nextInt(52);
+			name.append((char) (c < 26 ? 'a' + c : 'A' + c - 26));
+		}
+
+		return name.toString();
+	}
+}
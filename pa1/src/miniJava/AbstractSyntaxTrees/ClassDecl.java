@@ -5,6 +5,7 @@
  */
 package miniJava.AbstractSyntaxTrees;
 
+import  miniJava.ContextualAnalysis.ClassLayout;
 import  miniJava.SyntacticAnalyzer.SourcePosition;
 
 public class ClassDecl extends Declaration {
@@ -21,4 +22,7 @@ public class ClassDecl extends Declaration {
       
   public FieldDeclList fieldDeclList;
   public MethodDeclList methodDeclList;
+
+  // Set once the binding pass has laid the class out
+  public ClassLayout layout;
 }
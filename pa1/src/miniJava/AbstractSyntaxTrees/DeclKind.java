@@ -0,0 +1,12 @@
+package miniJava.AbstractSyntaxTrees;
+
+// What a bound Identifier names, and so how its offset is read: a local or
+// parameter at [rbp-offset], an instance field at [object+offset] and a
+// static field at [r15+offset]. Methods and classes have no offset.
+public enum DeclKind {
+        LOCAL,
+        FIELD,
+        STATIC,
+        METHOD,
+        CLASS;
+}
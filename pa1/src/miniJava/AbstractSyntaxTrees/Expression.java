@@ -12,5 +12,7 @@ public abstract class Expression extends AST {
   public Expression(SourcePosition posn) {
     super (posn);
   }
-  
+
+  // Filled in by type checking
+  public TypeDenoter type;
 }
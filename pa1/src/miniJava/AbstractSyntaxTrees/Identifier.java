@@ -10,6 +10,13 @@ import miniJava.SyntacticAnalyzer.Token;
 public class Identifier extends Terminal {
   public Token type;
 
+  // Filled in by the binding pass, decl stays null for names that do not
+  // resolve
+  public Declaration decl;
+  public DeclKind declKind;
+  public int offset;
+  public int size; // bytes a load or store of it moves
+
   public Identifier (Token t) {
     super (t);
     this.type = null;
@@ -13,4 +13,8 @@ public abstract class LocalDecl extends Declaration {
 		super(name,t,posn);
 	}
 
+	// Slot in the frame, set by the binding pass. Variables are at
+	// [rbp-offset], parameters have negative offsets above rbp.
+	public int offset;
+
 }
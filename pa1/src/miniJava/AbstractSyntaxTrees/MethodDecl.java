@@ -21,4 +21,7 @@ public class MethodDecl extends MemberDecl {
 	
 	public ParameterDeclList parameterDeclList;
 	public StatementList statementList;
+
+	// Bytes of variable slots below rbp, set by the binding pass
+	public int frameSize;
 }
@@ -1,30 +1,139 @@
 package miniJava.CodeGeneration;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
 
 import miniJava.ErrorReporter;
 import miniJava.AbstractSyntaxTrees.*;
 import miniJava.AbstractSyntaxTrees.Package;
 import miniJava.CodeGeneration.x64.*;
+import miniJava.ContextualAnalysis.ClassLayout;
 import miniJava.CodeGeneration.x64.ISA.*;
-import miniJava.SyntacticAnalyzer.Token;
 import miniJava.SyntacticAnalyzer.TokenType;
 
 public class CodeGenerator implements Visitor<Object, Object> {
     private ErrorReporter _errors;
     private InstructionList _asm; // our list of instructions that are used to make the code section
 
-    private Map<String, Map<String, Integer>> staticLocations = new HashMap<>();
-    private Stack<Map<String, Integer>> localVariables = new Stack<>();
-    private Stack<Map<String, Declaration>> localVarDecls = new Stack<>();
-    private Stack<Integer> offsets = new Stack<>();
+    // Every method is emitted once and bound to its label, calls are added
+    // against the label and get their offsets when the code is laid out
+    private Map<MethodDecl, Label> methodLabels = new HashMap<>();
 
     private ClassDeclList classes = null;
-    private ClassDecl helperClass = null;
-    private ExprList args = null;
-    private boolean address = false;
+    private MethodDecl printlnMethod = null;
+    private int thisOffset = 0;
+
+    // Expression temporaries live in these registers. Calls do not preserve
+    // the caller-saved ones, the caller saves whichever are live instead.
+    // RBX and R12 are callee-saved and handed out last, a method that uses
+    // them saves them in its frame.
+    private static final Reg64[] scratchRegisters = { Reg64.RSI, Reg64.RDI, Reg64.R8, Reg64.R9, Reg64.R10,
+            Reg64.R11, Reg64.RBX, Reg64.R12 };
+    private static final List<Reg64> calleeSaved = Arrays.asList(Reg64.RBX, Reg64.R12);
+    private ArrayList<Reg64> freeRegisters = new ArrayList<>(Arrays.asList(scratchRegisters));
+    private ArrayList<Reg64> liveRegisters = new ArrayList<>();
+
+    // The receiver of an instance method and the arguments are passed in
+    // these, in order. The binding pass gives the same number of parameters
+    // a frame slot.
+    private static final Reg64[] argumentRegisters = { Reg64.RDI, Reg64.RSI, Reg64.RDX, Reg64.RCX, Reg64.R8,
+            Reg64.R9 };
+
+    // Callee-saved registers the current method has used, and where its
+    // return statements jump to
+    private ArrayList<Reg64> usedCalleeSaved = new ArrayList<>();
+    private Label methodExit = null;
+
+    // A leaf method calls no generated method and has no rbp frame, its slots
+    // are addressed from rsp. frameSize is what the prologue reserved and
+    // stackDepth what has been pushed since.
+    private boolean leaf = false;
+    private int frameSize = 0;
+    private int stackDepth = 0;
+
+    // What the collector needs to find the references at a call: the scratch
+    // registers holding one, whether each word pushed since the prologue is
+    // one, and the variables of reference type that are in scope and set
+    private Set<Reg64> referenceRegisters = EnumSet.noneOf(Reg64.class);
+    private ArrayList<Boolean> pushedReferences = new ArrayList<>();
+    private ArrayList<LocalDecl> referenceLocals = new ArrayList<>();
+    private StackMaps stackMaps = new StackMaps();
+    private StackMaps.Frame frame = null;
+
+    // Sums, differences, products and negations whose value only goes into
+    // another one of them. Their low 32 bits come out the same unwrapped, so
+    // only the outermost one is sign extended.
+    private Set<Expression> unwrapped = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // The heap is a semispace of this many bytes to begin with, the copying
+    // collector makes it twice what survives when that does not fit. mmap
+    // only backs the pages that get touched.
+    private static final int ARENA_SIZE = 0x4000000;
+    private Label refillLabel = new Label();
+    private Label forwardLabel = new Label();
+
+    // Every block on the heap starts with a header word for the collector,
+    // references point past it. An object's header is its size in bytes with
+    // the number of references it starts with in the top half. An array's is
+    // its element size shifted left by 3, ARRAY_BLOCK and, when the elements
+    // are references, REFERENCE_ARRAY. The collector replaces the header of a
+    // block it has copied with the new address plus FORWARDED.
+    private static final int HEADER = 8;
+    private static final int FORWARDED = 1;
+    private static final int REFERENCE_ARRAY = 2;
+    private static final int ARRAY_BLOCK = 4;
+
+    // The refill saves these on entry, the collector finds references in
+    // them through the stack maps
+    private static final Reg64[] refillSaved = { Reg64.RCX, Reg64.RDX, Reg64.RBX, Reg64.RSI, Reg64.RDI, Reg64.R8,
+            Reg64.R9, Reg64.R10, Reg64.R11, Reg64.R12, Reg64.RBP, Reg64.RAX };
+
+    // .bss holds the println buffer: 8 bytes of fill count, the text, and 16
+    // bytes of slack for println's fixed size copy. The start and size of the
+    // current semispace follow, then the stack the fault handler runs on.
+    private static final int PRINT_BUFFER = 0x10000;
+    private static final int SPACE_START = 8 + PRINT_BUFFER + 16;
+    private static final int SPACE_SIZE = SPACE_START + 8;
+    private static final int SIGNAL_STACK = SPACE_SIZE + 8;
+    private static final int SIGNAL_STACK_SIZE = 0x4000;
+    private static final int BSS_SIZE = SIGNAL_STACK + SIGNAL_STACK_SIZE;
+    private Map<Integer, Reg64> bssPatches = new HashMap<>();
+
+    // A division by zero or a bad memory access runs the fault handler, on
+    // its own stack so an overflowed one still works. The handler is reset
+    // to the default action as it is entered.
+    private static final int SIGFPE = 8;
+    private static final int SIGSEGV = 11;
+    private static final long SA_FLAGS = 0x04000000L | 0x08000000L | 0x80000000L; // restorer, onstack, resethand
+
+    // lea placeholders for the address of the stack map table, which goes
+    // after the code
+    private Map<Integer, Reg64> tablePatches = new HashMap<>();
+    private int tableAddress = 0;
+
+    // lea placeholders for the address of a runtime routine, by the index of
+    // its first instruction
+    private Map<Integer, Integer> codePatches = new HashMap<>();
+    private List<Integer> handlerLeas = new ArrayList<>();
+    private List<Integer> restorerLeas = new ArrayList<>();
+    private Label flushLabel = new Label();
+    private Label printlnLabel = new Label();
+    private Label negativeSizeLabel = new Label();
+
+    // Everything from here on is generated from the methods, the peephole
+    // pass leaves the startup code and the runtime routines before it alone
+    private int firstMethodIdx = -1;
+
+    // Arrays start with an 8 byte length, the elements follow it packed as
+    // ClassLayout.packedSize of the element type says
+    private static final int ARRAY_HEADER = 8;
 
     public CodeGenerator(ErrorReporter errors) {
         this._errors = errors;
@@ -105,44 +214,54 @@ public class CodeGenerator implements Visitor<Object, Object> {
         prog.visit(this, null);
 
         // Output the file "a.out" if no errors
-        if (!_errors.hasErrors())
+        if (!_errors.hasErrors()) {
+            Peephole peephole = new Peephole(_asm, this.firstMethodIdx);
+            peephole.run();
+            if (System.getProperty("miniJava.peepholeStats") != null)
+                peephole.printStats(System.err);
+
+            this.stackMaps.locate(_asm);
+            _asm.relax();
+
+            this.tableAddress = _asm.getSize();
+            _asm.add(new Data(this.stackMaps.table(_asm, this.tableAddress)));
             makeElf("a.out");
+        }
+    }
+
+
+    // What a Reference resolved to. Visiting a reference leaves the object in
+    // reg for a FIELD and the receiver for an instance METHOD, the other kinds
+    // hold no register.
+    private class RefTarget {
+        DeclKind kind;
+        int offset; // [rbp-offset] for LOCAL, [object+offset] for FIELD, [r15+offset] for STATIC
+        int size = 8; // fields may be packed into 4 or 1 bytes
+        boolean reference = false; // the value points into the heap
+        MethodDecl method;
+        Reg64 reg;
+
+        RefTarget(DeclKind kind, int offset) {
+            this.kind = kind;
+            this.offset = offset;
+        }
     }
 
     @Override
     public Object visitPackage(Package prog, Object arg) {
-        int staticAddress = 0;
         int numMain = 0;
         MethodDecl main = null;
         this.classes = prog.classDeclList;
 
-        // System Class Decl
-        FieldDecl outDecl = new FieldDecl(false, true,
-                new ClassType(new Identifier(new Token(TokenType.Identifier, "_PrintStream", null)), null), "out", null,
-                "_PrintStream");
-        FieldDeclList systemFieldDeclList = new FieldDeclList();
-        systemFieldDeclList.add(outDecl);
-        ClassDecl s = new ClassDecl("System", systemFieldDeclList, new MethodDeclList(), null);
-
-        // _PrintStream Class Decl
-        FieldDecl printlnFieldDecl = new FieldDecl(false, false, new BaseType(TypeKind.VOID, null), "println", null,
-                "_PrintStream");
-        ParameterDeclList printlnParameterDeclList = new ParameterDeclList();
-        printlnParameterDeclList.add(new ParameterDecl(new BaseType(TypeKind.INT, null), "n", null));
-        MethodDecl printlnMethodDecl = new MethodDecl(printlnFieldDecl, printlnParameterDeclList, new StatementList(),
-                null);
-        MethodDeclList printStreamMethodDeclList = new MethodDeclList();
-        printStreamMethodDeclList.add(printlnMethodDecl);
-        ClassDecl printStream = new ClassDecl("_PrintStream", new FieldDeclList(), printStreamMethodDeclList, null);
-
-        // String Class Decl
-        ClassDecl StringDecl = new ClassDecl("String", new FieldDeclList(), new MethodDeclList(), null);
-
-        this.classes.add(s);
-        this.classes.add(printStream);
-        this.classes.add(StringDecl);
-
-        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R15, Reg64.RBP)));
+        // System, _PrintStream and String were added by the binding pass
+        for (ClassDecl c : this.classes) {
+            if (c.name.equals("_PrintStream")) {
+                this.printlnMethod = c.methodDeclList.get(0);
+            }
+        }
+
+        // Static fields live just below the stack pointer the program starts with
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R15, Reg64.RSP)));
 
         for (ClassDecl c : this.classes) {
             for (MethodDecl m : c.methodDeclList) {
@@ -156,82 +275,1233 @@ public class CodeGenerator implements Visitor<Object, Object> {
                     numMain += 1;
                 }
             }
-
-            staticLocations.put(c.name, new HashMap<>());
         }
 
         if (numMain != 1) {
             throw new CodeGenerationError(prog, "Program must have 1 main method");
         }
 
+        // The class layouts put the static slots one after another from r15 down
         for (ClassDecl c : this.classes) {
-            for (FieldDecl f : c.fieldDeclList) {
-                if (f.isStatic) {
-                    staticLocations.get(c.name).put(f.name, staticAddress);
-                    _asm.add(new Push(0));
-                    staticAddress -= 8;
-                }
+            for (int i = 0; i < c.layout.staticSize; i += 8) {
+                _asm.add(new Push(0));
             }
         }
 
-        main.visit(this, null);
+        // Empty heap, the first new maps the first semispace
+        _asm.add(new Xor(new ModRMSIB(Reg64.R13, Reg64.R13)));
+        _asm.add(new Xor(new ModRMSIB(Reg64.R14, Reg64.R14)));
+        makeBssAddress(Reg64.RAX);
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, SPACE_SIZE), ARENA_SIZE));
+
+        // What was printed before a fault still gets written out
+        makeSignalStack();
+        makeSignalAction(SIGFPE);
+        makeSignalAction(SIGSEGV);
+
+        _asm.add(new Xor(new ModRMSIB(Reg64.RDI, Reg64.RDI))); // String[] args
+        _asm.add(new Call(0), methodLabel(main));
 
         _asm.outputFromMark();
 
-        // TODO Change this exit statement
+        _asm.add(new Call(0), this.flushLabel);
         _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 60));
         _asm.add(new Xor(new ModRMSIB(Reg64.RDI, Reg64.RDI)));
         _asm.add(new Syscall());
 
+        _asm.bind(this.refillLabel);
+        this.makeRefill();
+        _asm.bind(this.forwardLabel);
+        this.makeForward();
+        _asm.bind(this.flushLabel);
+        this.makeFlush();
+        _asm.bind(this.printlnLabel);
+        this.makePrintln();
+        _asm.bind(this.negativeSizeLabel);
+        this.makeNegativeSize();
+        this.makeFaultHandler();
+        this.firstMethodIdx = _asm.getCount();
+
+        for (ClassDecl c : this.classes) {
+            c.visit(this, null);
+        }
+
         return null;
     }
 
     public void makeElf(String fname) {
-        ELFMaker elf = new ELFMaker(_errors, _asm.getSize(), 8); // bss ignored until PA5, set to 8
+        ELFMaker elf = new ELFMaker(_errors, _asm.getSize(), BSS_SIZE);
+
+        // RIP relative, so the displacement counts from the end of each lea
+        for (Map.Entry<Integer, Reg64> lea : this.bssPatches.entrySet()) {
+            Instruction placeholder = _asm.get(lea.getKey());
+            int disp = (int) elf.getBssOffset() - (placeholder.startAddress + placeholder.size());
+            _asm.patch(lea.getKey(), new Lea(new ModRMSIB(Reg64.RIP, disp, lea.getValue())));
+        }
+
+        for (Map.Entry<Integer, Reg64> lea : this.tablePatches.entrySet()) {
+            Instruction placeholder = _asm.get(lea.getKey());
+            int disp = this.tableAddress - (placeholder.startAddress + placeholder.size());
+            _asm.patch(lea.getKey(), new Lea(new ModRMSIB(Reg64.RIP, disp, lea.getValue())));
+        }
+
+        for (Map.Entry<Integer, Integer> lea : this.codePatches.entrySet()) {
+            Instruction placeholder = _asm.get(lea.getKey());
+            int disp = _asm.get(lea.getValue()).startAddress - (placeholder.startAddress + placeholder.size());
+            _asm.patch(lea.getKey(), new Lea(new ModRMSIB(Reg64.RIP, disp, Reg64.RAX)));
+        }
+
         elf.outputELF(fname, _asm.getBytes(), 0);
     }
 
-    private int makeMalloc() {
-        int idxStart = _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 0x09)); // mmap
+    // Refill, the slow path of the allocation every new does inline. Entered
+    // with the size in bytes in RAX and R14 already moved past the end of the
+    // semispace R13 marks, leaves R14 past the request in a semispace it fits
+    // in, so the caller's R14 - RAX is the address. Everything else is
+    // preserved.
+    //
+    // The first refill maps the semispace, the ones after copy what is still
+    // reachable into a new one and unmap the old. The roots are the static
+    // fields and, through the stack maps of the calls the frames on the stack
+    // are in, their variables, pushed words and registers. What was copied is
+    // then scanned for more in the order it was copied. If what survived and
+    // the request take more than half the semispace the next one is twice
+    // that, if they do not fit at all it is copied again into one that big.
+    private int makeRefill() {
+        int n = refillSaved.length;
+
+        // Locals below the saved registers: where the rbx and r12 of the frame
+        // being walked are kept, the end of the list being forwarded, the new
+        // semispace and the size of the old one
+        int rbxAt = 0;
+        int r12At = 8;
+        int listEnd = 16;
+        int toStart = 24;
+        int fromSize = 32;
+        int locals = 40;
+        int request = locals; // RAX, pushed last
+        int callerSp = locals + 8 * n + 8;
+
+        int idxStart = _asm.add(new Sub(new ModRMSIB(Reg64.R14, Reg64.RAX)));
+        for (Reg64 r : refillSaved) {
+            _asm.add(new Push(r));
+        }
+        _asm.add(new Sub(new ModRMSIB(Reg64.RSP, true), locals));
+
+        Label again = new Label();
+        Label collect = new Label();
+        Label check = new Label();
+        _asm.bind(again);
+        makeBssAddress(Reg64.RBX);
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RBX, SPACE_START, Reg64.RAX)));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, true), 0));
+        _asm.add(new CondJmp(Condition.NE, 0), collect);
+
+        // Nothing to copy yet
+        makeMapSpace();
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RBX, SPACE_START, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R14, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R13, Reg64.RAX)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RBX, SPACE_SIZE, Reg64.RCX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.R13, Reg64.RCX)));
+        _asm.add(new Jmp(0), check);
+
+        // forward copies to R12 what lies between R8 and R9
+        _asm.bind(collect);
+        makeMapSpace();
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R12, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSP, toStart, Reg64.RAX)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RBX, SPACE_START, Reg64.R8)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R9, Reg64.R14)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, Reg64.R13)));
+        _asm.add(new Sub(new ModRMSIB(Reg64.RAX, Reg64.R8)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSP, fromSize, Reg64.RAX)));
+
+        List<Reg64> saved = Arrays.asList(refillSaved);
+        _asm.add(new Lea(new ModRMSIB(Reg64.RSP, locals + 8 * (n - 1 - saved.indexOf(Reg64.RBX)), Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSP, rbxAt, Reg64.RAX)));
+        _asm.add(new Lea(new ModRMSIB(Reg64.RSP, locals + 8 * (n - 1 - saved.indexOf(Reg64.R12)), Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSP, r12At, Reg64.RAX)));
+
+        for (ClassDecl c : this.classes) {
+            for (FieldDecl f : c.fieldDeclList) {
+                if (f.isStatic && ClassLayout.isReference(f.type)) {
+                    _asm.add(new Lea(new ModRMSIB(Reg64.R15, c.layout.offsetOf(f), Reg64.RDI)));
+                    _asm.add(new Call(0), this.forwardLabel);
+                }
+            }
+        }
 
+        // Walk the frames with their stack pointer at the call in R14, their
+        // rbp in R13 and the return address of the call in RBX. The call
+        // main was made from has no stack map, that ends the walk.
+        _asm.add(new Lea(new ModRMSIB(Reg64.RSP, callerSp, Reg64.R14)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R13, Reg64.RBP)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.R14, -8, Reg64.RBX)));
+
+        Label walk = new Label();
+        Label walked = new Label();
+        _asm.bind(walk);
+        this.tablePatches.put(_asm.add(new Lea(new ModRMSIB(Reg64.RIP, 0, Reg64.RBP))), Reg64.RBP);
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, Reg64.RBX)));
+        _asm.add(new Sub(new ModRMSIB(Reg64.RAX, Reg64.RBP)));
+
+        // Binary search for the return address between RCX and RDX
+        Label search = new Label();
+        Label higher = new Label();
+        Label found = new Label();
+        _asm.add(new Xor(new ModRMSIB(Reg64.RCX, Reg64.RCX)));
+        _asm.add(new Movsxd(new ModRMSIB(Reg64.RBP, 0, Reg64.RDX)));
+        _asm.bind(search);
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RCX, Reg64.RDX)));
+        _asm.add(new CondJmp(Condition.GTE, 0), walked);
+        _asm.add(new Lea(new ModRMSIB(Reg64.RCX, Reg64.RDX, 1, 0, Reg64.RSI)));
+        _asm.add(new Shr(new ModRMSIB(Reg64.RSI, true), 1));
+        _asm.add(new Movsxd(new ModRMSIB(Reg64.RBP, Reg64.RSI, 8, 4, Reg64.RDI)));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RDI, Reg64.RAX)));
+        _asm.add(new CondJmp(Condition.E, 0), found);
+        _asm.add(new CondJmp(Condition.LT, 0), higher);
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDX, Reg64.RSI)));
+        _asm.add(new Jmp(0), search);
+        _asm.bind(higher);
+        _asm.add(new Lea(new ModRMSIB(Reg64.RSI, 1, Reg64.RCX)));
+        _asm.add(new Jmp(0), search);
+
+        // RBX is the description from here on
+        _asm.bind(found);
+        _asm.add(new Movsxd(new ModRMSIB(Reg64.RBP, Reg64.RSI, 8, 8, Reg64.RBX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RBX, Reg64.RBP)));
+
+        makeForwardFlagged(StackMaps.RBX_REFERENCE, rbxAt);
+        makeForwardFlagged(StackMaps.R12_REFERENCE, r12At);
+        _asm.add(new Lea(new ModRMSIB(Reg64.RBX, 16, Reg64.RBP)));
+        makeForwardList(Reg64.R13, listEnd);
+        makeForwardList(Reg64.R14, listEnd);
+
+        // Where this frame saved its caller's rbx and r12
+        makeSaveLocation(8, rbxAt);
+        makeSaveLocation(12, r12At);
+
+        Label framed = new Label();
+        _asm.add(new Movsxd(new ModRMSIB(Reg64.RBX, 0, Reg64.RAX)));
+        _asm.add(new And(new ModRMSIB(Reg64.RAX, true), StackMaps.LEAF));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, true), 0));
+        _asm.add(new CondJmp(Condition.E, 0), framed);
+        _asm.add(new Movsxd(new ModRMSIB(Reg64.RBX, 4, Reg64.RAX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.R14, Reg64.RAX)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.R14, 0, Reg64.RBX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.R14, true), 8));
+        _asm.add(new Jmp(0), walk);
+        _asm.bind(framed);
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.R13, 8, Reg64.RBX)));
+        _asm.add(new Lea(new ModRMSIB(Reg64.R13, 16, Reg64.R14)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.R13, 0, Reg64.R13)));
+        _asm.add(new Jmp(0), walk);
+        _asm.bind(walked);
+
+        // Scan the copies from RBP for references to the blocks left behind,
+        // [rsp+listEnd] is the next block and RBX the end of the references
+        Label scan = new Label();
+        Label array = new Label();
+        Label refs = new Label();
+        Label scanned = new Label();
+        Label nextBlock = new Label();
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSP, toStart, Reg64.RBP)));
+        _asm.bind(scan);
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RBP, Reg64.R12)));
+        _asm.add(new CondJmp(Condition.GTE, 0), scanned);
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RBP, 0, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RCX, Reg64.RAX)));
+        _asm.add(new And(new ModRMSIB(Reg64.RCX, true), ARRAY_BLOCK));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RCX, true), 0));
+        _asm.add(new CondJmp(Condition.NE, 0), array);
+
+        // An object's references are the fields it starts with
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RBX, Reg64.RAX)));
+        _asm.add(new Shr(new ModRMSIB(Reg64.RBX, true), 32));
+        _asm.add(new And(new ModRMSIB(Reg64.RAX, true), 0x7FFFFFFF));
+        _asm.add(new Lea(new ModRMSIB(Reg64.RBP, Reg64.RAX, 1, HEADER, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSP, listEnd, Reg64.RAX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RBP, true), HEADER));
+        _asm.add(new Lea(new ModRMSIB(Reg64.RBP, Reg64.RBX, 8, 0, Reg64.RBX)));
+        _asm.add(new Jmp(0), refs);
+
+        _asm.bind(array);
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RCX, Reg64.RAX)));
+        _asm.add(new Shr(new ModRMSIB(Reg64.RAX, true), 3));
+        _asm.add(new Imul(Reg64.RAX, new ModRMSIB(Reg64.RBP, HEADER)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RAX, true), ARRAY_HEADER + 7));
+        _asm.add(new And(new ModRMSIB(Reg64.RAX, true), -8));
+        _asm.add(new Lea(new ModRMSIB(Reg64.RBP, Reg64.RAX, 1, HEADER, Reg64.RBX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSP, listEnd, Reg64.RBX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RBP, true), HEADER + ARRAY_HEADER));
+        _asm.add(new And(new ModRMSIB(Reg64.RCX, true), REFERENCE_ARRAY));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RCX, true), 0));
+        _asm.add(new CondJmp(Condition.E, 0), nextBlock);
+
+        _asm.bind(refs);
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RBP, Reg64.RBX)));
+        _asm.add(new CondJmp(Condition.GTE, 0), nextBlock);
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDI, Reg64.RBP)));
+        _asm.add(new Call(0), this.forwardLabel);
+        _asm.add(new Add(new ModRMSIB(Reg64.RBP, true), 8));
+        _asm.add(new Jmp(0), refs);
+        _asm.bind(nextBlock);
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSP, listEnd, Reg64.RBP)));
+        _asm.add(new Jmp(0), scan);
+        _asm.bind(scanned);
+
+        // munmap the old semispace, allocation goes on after the copies
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDI, Reg64.R8)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSP, fromSize, Reg64.RSI)));
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 0x0B));
+        _asm.add(new Syscall());
+
+        makeBssAddress(Reg64.RBX);
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSP, toStart, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RBX, SPACE_START, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R14, Reg64.R12)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R13, Reg64.RAX)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RBX, SPACE_SIZE, Reg64.RCX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.R13, Reg64.RCX)));
+
+        // The next semispace is twice what is live once the request is in,
+        // in whole pages, when that is more than this one
+        _asm.bind(check);
+        Label sized = new Label();
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, Reg64.R14)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RBX, SPACE_START, Reg64.RCX)));
+        _asm.add(new Sub(new ModRMSIB(Reg64.RAX, Reg64.RCX)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSP, request, Reg64.RCX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RAX, Reg64.RCX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RAX, Reg64.RAX)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RBX, SPACE_SIZE, Reg64.RCX)));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, Reg64.RCX)));
+        _asm.add(new CondJmp(Condition.LTE, 0), sized);
+        _asm.add(new Add(new ModRMSIB(Reg64.RAX, true), 4095));
+        _asm.add(new And(new ModRMSIB(Reg64.RAX, true), -4096));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RBX, SPACE_SIZE, Reg64.RAX)));
+        _asm.bind(sized);
+
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, Reg64.R14)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSP, request, Reg64.RCX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RAX, Reg64.RCX)));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, Reg64.R13)));
+        _asm.add(new CondJmp(Condition.GT, 0), again);
+
+        _asm.add(new Add(new ModRMSIB(Reg64.RSP, true), locals));
+        for (int i = n - 1; i >= 0; i--) {
+            _asm.add(new Pop(refillSaved[i]));
+        }
+        _asm.add(new Add(new ModRMSIB(Reg64.R14, Reg64.RAX)));
+        _asm.add(new Ret());
+
+        // return the index of the first instruction in this method, if needed
+        return idxStart;
+    }
+
+    // mmap a semispace of the size in .bss, RBX, into RAX
+    private void makeMapSpace() {
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RBX, SPACE_SIZE, Reg64.RSI)));
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 0x09)); // mmap
         _asm.add(new Xor(new ModRMSIB(Reg64.RDI, Reg64.RDI))); // addr=0
-        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RSI, true), 0x1000)); // 4kb alloc
         _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RDX, true), 0x03)); // prot read|write
         _asm.add(new Mov_rmi(new ModRMSIB(Reg64.R10, true), 0x22)); // flags= private, anonymous
         _asm.add(new Mov_rmi(new ModRMSIB(Reg64.R8, true), -1)); // fd= -1
         _asm.add(new Xor(new ModRMSIB(Reg64.R9, Reg64.R9))); // offset=0
         _asm.add(new Syscall());
+    }
+
+    // Forwards the register the frame being walked keeps at [[rsp+at]] if its
+    // description, RBX, has flag
+    private void makeForwardFlagged(int flag, int at) {
+        Label skip = new Label();
+        _asm.add(new Movsxd(new ModRMSIB(Reg64.RBX, 0, Reg64.RAX)));
+        _asm.add(new And(new ModRMSIB(Reg64.RAX, true), flag));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, true), 0));
+        _asm.add(new CondJmp(Condition.E, 0), skip);
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSP, at, Reg64.RDI)));
+        _asm.add(new Call(0), this.forwardLabel);
+        _asm.bind(skip);
+    }
+
+    // Forwards the words at base plus each offset of the counted list at RBP,
+    // and leaves RBP past it
+    private void makeForwardList(Reg64 base, int listEnd) {
+        Label loop = new Label();
+        Label done = new Label();
+        _asm.add(new Movsxd(new ModRMSIB(Reg64.RBP, 0, Reg64.RAX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RBP, true), 4));
+        _asm.add(new Lea(new ModRMSIB(Reg64.RBP, Reg64.RAX, 4, 0, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSP, listEnd, Reg64.RAX)));
+        _asm.bind(loop);
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSP, listEnd, Reg64.RAX)));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RBP, Reg64.RAX)));
+        _asm.add(new CondJmp(Condition.GTE, 0), done);
+        _asm.add(new Movsxd(new ModRMSIB(Reg64.RBP, 0, Reg64.RDI)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RDI, base)));
+        _asm.add(new Call(0), this.forwardLabel);
+        _asm.add(new Add(new ModRMSIB(Reg64.RBP, true), 4));
+        _asm.add(new Jmp(0), loop);
+        _asm.bind(done);
+    }
+
+    // Points [rsp+at] at the save slot the description, RBX, has at disp if
+    // the frame has one, the caller's register is there
+    private void makeSaveLocation(int disp, int at) {
+        Label skip = new Label();
+        _asm.add(new Movsxd(new ModRMSIB(Reg64.RBX, disp, Reg64.RAX)));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, true), 0));
+        _asm.add(new CondJmp(Condition.E, 0), skip);
+        _asm.add(new Add(new ModRMSIB(Reg64.RAX, Reg64.R13)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSP, at, Reg64.RAX)));
+        _asm.bind(skip);
+    }
+
+    // Copies the block the word at RDI points to to R12 and points the word
+    // at the copy. The old block's header becomes the new address, so it is
+    // only copied once. Words that are not into the old semispace, R8 up to
+    // R9, are left alone. Clobbers RAX, RCX, RDX, RSI, R10 and R11.
+    private int makeForward() {
+        Label done = new Label();
+        Label copy = new Label();
+        Label array = new Label();
+        Label sized = new Label();
+        Label loop = new Label();
+        Label copied = new Label();
+
+        int idxStart = _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RDI, 0, Reg64.RAX)));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, Reg64.R8)));
+        _asm.add(new CondJmp(Condition.LT, 0), done);
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, Reg64.R9)));
+        _asm.add(new CondJmp(Condition.GTE, 0), done);
+
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RAX, -HEADER, Reg64.RCX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDX, Reg64.RCX)));
+        _asm.add(new And(new ModRMSIB(Reg64.RDX, true), FORWARDED));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RDX, true), 0));
+        _asm.add(new CondJmp(Condition.E, 0), copy);
+        _asm.add(new Sub(new ModRMSIB(Reg64.RCX, true), FORWARDED));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDI, 0, Reg64.RCX)));
+        _asm.add(new Ret());
+
+        // Bytes past the header, RDX
+        _asm.bind(copy);
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDX, Reg64.RCX)));
+        _asm.add(new And(new ModRMSIB(Reg64.RDX, true), ARRAY_BLOCK));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RDX, true), 0));
+        _asm.add(new CondJmp(Condition.NE, 0), array);
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDX, Reg64.RCX)));
+        _asm.add(new And(new ModRMSIB(Reg64.RDX, true), 0x7FFFFFFF));
+        _asm.add(new Jmp(0), sized);
+        _asm.bind(array);
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDX, Reg64.RCX)));
+        _asm.add(new Shr(new ModRMSIB(Reg64.RDX, true), 3));
+        _asm.add(new Imul(Reg64.RDX, new ModRMSIB(Reg64.RAX, 0)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RDX, true), ARRAY_HEADER + 7));
+        _asm.add(new And(new ModRMSIB(Reg64.RDX, true), -8));
+        _asm.bind(sized);
+
+        _asm.add(new Lea(new ModRMSIB(Reg64.RAX, -HEADER, Reg64.RSI)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R10, Reg64.R12)));
+        _asm.add(new Lea(new ModRMSIB(Reg64.RAX, Reg64.RDX, 1, 0, Reg64.R11)));
+        _asm.bind(loop);
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RSI, Reg64.R11)));
+        _asm.add(new CondJmp(Condition.GTE, 0), copied);
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSI, 0, Reg64.RCX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R10, 0, Reg64.RCX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RSI, true), 8));
+        _asm.add(new Add(new ModRMSIB(Reg64.R10, true), 8));
+        _asm.add(new Jmp(0), loop);
+        _asm.bind(copied);
+
+        _asm.add(new Lea(new ModRMSIB(Reg64.R12, HEADER, Reg64.RCX)));
+        _asm.add(new Lea(new ModRMSIB(Reg64.RCX, FORWARDED, Reg64.RDX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, -HEADER, Reg64.RDX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDI, 0, Reg64.RCX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R12, Reg64.R10)));
+        _asm.bind(done);
+        _asm.add(new Ret());
 
-        // pointer to newly allocated memory is in RAX
-        // return the index of the first instruction in this method, if needed
         return idxStart;
     }
 
+    // Bumps R14 by the byte count already in RAX, the header included, and
+    // leaves the new block in RAX, past its header. Only running past the
+    // semispace calls out, the collector can run there.
+    private void makeAllocation() {
+        Label fits = new Label();
+
+        _asm.add(new Add(new ModRMSIB(Reg64.R14, Reg64.RAX)));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.R14, Reg64.R13)));
+        _asm.add(new CondJmp(Condition.LTE, 0), fits);
+        Call refill = new Call(0);
+        _asm.add(refill, this.refillLabel);
+        safepoint(refill, true);
+        _asm.bind(fits);
+        _asm.add(new Neg(new ModRMSIB(Reg64.RAX, true)));
+        _asm.add(new Lea(new ModRMSIB(Reg64.RAX, Reg64.R14, 1, HEADER, Reg64.RAX)));
+    }
+
+    // Prints the int in RAX and a newline. Digits are divided out with a
+    // multiply by the reciprocal of 10 into a stack buffer, then appended to
+    // the output buffer in .bss, which only gets written when it is full or
+    // the program exits. Everything but RAX is preserved.
     private int makePrintln() {
-        // TODO: how can we generate the assembly to println?
-        
-        _asm.add(new Lea(new ModRMSIB(Reg64.RSP, 0, Reg64.RSI))); // Move num to RSI
-        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RDI, true), 1)); // Move 1 to RDI (file descriptor for stdout)
-        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RDX, true), 1)); // Move 1 to RDX (length of the integer)
-        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 1)); // Move 1 to RAX (syscall number for sys_write)
-        _asm.add(new Syscall()); // Make the syscall to print the integer
+        int idxStart = _asm.add(new Push(Reg64.RCX));
+        _asm.add(new Push(Reg64.RDX));
+        _asm.add(new Push(Reg64.RSI));
+        _asm.add(new Push(Reg64.RDI));
+        _asm.add(new Push(Reg64.R8));
+        _asm.add(new Push(Reg64.R11));
+
+        _asm.add(new Movsxd(new ModRMSIB(Reg64.RAX, Reg64.RAX))); // only the low 32 bits are the int
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R8, Reg64.RAX))); // remember the sign
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, true), 0));
+        Label positive = new Label();
+        _asm.add(new CondJmp(Condition.GTE, 0), positive);
+        _asm.add(new Neg(new ModRMSIB(Reg64.RAX, true)));
+        _asm.bind(positive);
+
+        // Text is built backwards from the end of a 16 byte buffer, the
+        // longest int is "-2147483648\n"
+        _asm.add(new Sub(new ModRMSIB(Reg64.RSP, true), 16));
+        _asm.add(new Lea(new ModRMSIB(Reg64.RSP, 16, Reg64.RSI)));
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RDX, true), '\n'));
+        _asm.add(new Sub(new ModRMSIB(Reg64.RSI, true), 1));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSI, 0, Reg8.DL)));
+
+        // x / 10 == (x * 0xCCCCCCCD) >> 35 for every x below 2^32
+        _asm.add(new Mov_ri64(Reg64.RDI, 0xCCCCCCCDL));
+        Label digitLoop = new Label();
+        _asm.bind(digitLoop);
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RCX, Reg64.RAX)));
+        _asm.add(new Imul(Reg64.RCX, new ModRMSIB(Reg64.RDI, true)));
+        _asm.add(new Shr(new ModRMSIB(Reg64.RCX, true), 35));
+        _asm.add(new Lea(new ModRMSIB(Reg64.RCX, Reg64.RCX, 4, 0, Reg64.RDX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RDX, Reg64.RDX)));
+        _asm.add(new Sub(new ModRMSIB(Reg64.RAX, Reg64.RDX))); // x % 10
+        _asm.add(new Add(new ModRMSIB(Reg64.RAX, true), '0'));
+        _asm.add(new Sub(new ModRMSIB(Reg64.RSI, true), 1));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSI, 0, Reg8.AL)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, Reg64.RCX)));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, true), 0));
+        _asm.add(new CondJmp(Condition.NE, 0), digitLoop);
+
+        _asm.add(new Cmp(new ModRMSIB(Reg64.R8, true), 0));
+        Label unsigned = new Label();
+        _asm.add(new CondJmp(Condition.GTE, 0), unsigned);
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), '-'));
+        _asm.add(new Sub(new ModRMSIB(Reg64.RSI, true), 1));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSI, 0, Reg8.AL)));
+        _asm.bind(unsigned);
+
+        _asm.add(new Lea(new ModRMSIB(Reg64.RSP, 16, Reg64.RDX)));
+        _asm.add(new Sub(new ModRMSIB(Reg64.RDX, Reg64.RSI))); // length of the text
+
+        // Make room in the output buffer if the text does not fit
+        makeBssAddress(Reg64.RDI);
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RDI, 0, Reg64.RCX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RCX, Reg64.RDX)));
+        _asm.add(new Cmp(new ModRMSIB(Reg64.RCX, true), PRINT_BUFFER));
+        Label fits = new Label();
+        _asm.add(new CondJmp(Condition.LTE, 0), fits);
+        _asm.add(new Call(0), this.flushLabel);
+        _asm.bind(fits);
+
+        // Always copy 16 bytes, the buffer has slack for the part past the text
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RDI, 0, Reg64.RCX)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSI, 0, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDI, Reg64.RCX, 1, 8, Reg64.RAX)));
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSI, 8, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDI, Reg64.RCX, 1, 16, Reg64.RAX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RCX, Reg64.RDX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDI, 0, Reg64.RCX)));
+
+        _asm.add(new Add(new ModRMSIB(Reg64.RSP, true), 16));
+        _asm.add(new Pop(Reg64.R11));
+        _asm.add(new Pop(Reg64.R8));
+        _asm.add(new Pop(Reg64.RDI));
+        _asm.add(new Pop(Reg64.RSI));
+        _asm.add(new Pop(Reg64.RDX));
+        _asm.add(new Pop(Reg64.RCX));
+        _asm.add(new Ret());
+
+        return idxStart;
+    }
+
+    // Writes out and empties the output buffer. Clobbers RAX, RCX and R11.
+    private int makeFlush() {
+        int idxStart = _asm.add(new Push(Reg64.RDX));
+        _asm.add(new Push(Reg64.RSI));
+        _asm.add(new Push(Reg64.RDI));
+
+        makeBssAddress(Reg64.RSI);
+        _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSI, 0, Reg64.RDX))); // bytes used
+        _asm.add(new Xor(new ModRMSIB(Reg64.RAX, Reg64.RAX)));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSI, 0, Reg64.RAX)));
+        _asm.add(new Add(new ModRMSIB(Reg64.RSI, true), 8));
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RDI, true), 1)); // stdout
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 1)); // write
+        _asm.add(new Syscall());
+
+        _asm.add(new Pop(Reg64.RDI));
+        _asm.add(new Pop(Reg64.RSI));
+        _asm.add(new Pop(Reg64.RDX));
+        _asm.add(new Ret());
+
+        return idxStart;
+    }
+
+    // Ends the program with status 1 for an array created with a negative
+    // length, after writing out what was printed so far
+    private int makeNegativeSize() {
+        int idxStart = _asm.add(new Call(0), this.flushLabel);
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 60));
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RDI, true), 1));
+        _asm.add(new Syscall());
+
+        return idxStart;
+    }
+
+    // The handler for SIGFPE and SIGSEGV writes out what was printed so far
+    // and returns through the restorer to the instruction that faulted. It
+    // faults again, and the default action ends the program with the signal.
+    private int makeFaultHandler() {
+        int idxStart = _asm.add(new Call(0), this.flushLabel);
+        _asm.add(new Ret());
+
+        int restorer = _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 15)); // rt_sigreturn
+        _asm.add(new Syscall());
+
+        for (int lea : this.handlerLeas) {
+            this.codePatches.put(lea, idxStart);
+        }
+        for (int lea : this.restorerLeas) {
+            this.codePatches.put(lea, restorer);
+        }
+
+        return idxStart;
+    }
+
+    // sigaltstack onto the stack in .bss
+    private void makeSignalStack() {
+        _asm.add(new Push(SIGNAL_STACK_SIZE)); // ss_size
+        _asm.add(new Push(0)); // ss_flags
+        makeBssAddress(Reg64.RAX);
+        _asm.add(new Add(new ModRMSIB(Reg64.RAX, true), SIGNAL_STACK));
+        _asm.add(new Push(Reg64.RAX)); // ss_sp
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RDI, Reg64.RSP)));
+        _asm.add(new Xor(new ModRMSIB(Reg64.RSI, Reg64.RSI)));
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 131)); // sigaltstack
+        _asm.add(new Syscall());
+        _asm.add(new Add(new ModRMSIB(Reg64.RSP, true), 24));
+    }
+
+    // rt_sigaction(signal) to the fault handler, the struct is built on the stack
+    private void makeSignalAction(int signal) {
+        _asm.add(new Push(0)); // sa_mask
+        this.restorerLeas.add(_asm.add(new Lea(new ModRMSIB(Reg64.RIP, 0, Reg64.RAX))));
+        _asm.add(new Push(Reg64.RAX)); // sa_restorer
+        _asm.add(new Mov_ri64(Reg64.RAX, SA_FLAGS));
+        _asm.add(new Push(Reg64.RAX)); // sa_flags
+        this.handlerLeas.add(_asm.add(new Lea(new ModRMSIB(Reg64.RIP, 0, Reg64.RAX))));
+        _asm.add(new Push(Reg64.RAX)); // sa_handler
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RDI, true), signal));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSI, Reg64.RSP)));
+        _asm.add(new Xor(new ModRMSIB(Reg64.RDX, Reg64.RDX)));
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.R10, true), 8)); // sizeof(sigset_t)
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 13)); // rt_sigaction
+        _asm.add(new Syscall());
+        _asm.add(new Add(new ModRMSIB(Reg64.RSP, true), 32));
+    }
+
+    // lea r,[rip+disp] with the displacement filled in once the size of the
+    // text section, which .bss follows, is final
+    private void makeBssAddress(Reg64 r) {
+        this.bssPatches.put(_asm.add(new Lea(new ModRMSIB(Reg64.RIP, 0, r))), r);
+    }
+
+    private void makeEpilogue() {
+        makeTeardown();
+        _asm.add(new Ret());
+    }
+
+    // Gives back the frame, rsp is left at the return address
+    private void makeTeardown() {
+        if (!this.leaf) {
+            _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSP, Reg64.RBP)));
+            _asm.add(new Pop(Reg64.RBP));
+        } else if (this.frameSize > 0) {
+            _asm.add(new Add(new ModRMSIB(Reg64.RSP, true), this.frameSize));
+        }
+    }
+
+    // The frame slot the binding pass put at [rbp-offset], with r as the
+    // register operand. Leaf methods find it from rsp instead, past whatever
+    // was pushed since the prologue. Their slots end right below the return
+    // address, so arguments on the stack are 8 bytes closer than past an rbp.
+    private ModRMSIB slot(int offset, Reg r) {
+        if (!this.leaf) {
+            return new ModRMSIB(Reg64.RBP, -offset, r);
+        }
+
+        int disp = this.frameSize + this.stackDepth - offset;
+        return new ModRMSIB(Reg64.RSP, offset > 0 ? disp : disp - 8, r);
+    }
+
+    private Label methodLabel(MethodDecl md) {
+        Label l = this.methodLabels.get(md);
+        if (l == null) {
+            l = new Label();
+            this.methodLabels.put(md, l);
+        }
+        return l;
+    }
+
+    private Reg64 allocRegister() {
+        if (freeRegisters.isEmpty()) {
+            throw new IllegalStateException("No free scratch register");
+        }
+
+        Reg64 r = freeRegisters.remove(0);
+        liveRegisters.add(r);
+        referenceRegisters.remove(r);
+
+        if (calleeSaved.contains(r) && !usedCalleeSaved.contains(r)) {
+            usedCalleeSaved.add(r);
+        }
+        return r;
+    }
+
+    // RAX and RCX are only ever borrowed between two instructions, they are
+    // not part of the pool
+    private void releaseRegister(Reg64 r) {
+        referenceRegisters.remove(r);
+        if (liveRegisters.remove(r)) {
+            freeRegisters.add(0, r);
+        }
+    }
+
+    private void claimRegister(Reg64 r) {
+        freeRegisters.remove(r);
+        liveRegisters.add(r);
+        referenceRegisters.remove(r);
+    }
+
+    // Whether the value in r points into the heap, the collector updates the
+    // registers marked when it moves what they point to
+    private void markReference(Reg64 r, boolean reference) {
+        if (reference) {
+            referenceRegisters.add(r);
+        } else {
+            referenceRegisters.remove(r);
+        }
+    }
+
+    // Pushes r and gives it up
+    private void pushTemporary(Reg64 r) {
+        _asm.add(new Push(r));
+        this.stackDepth += 8;
+        this.pushedReferences.add(referenceRegisters.contains(r));
+        releaseRegister(r);
+    }
+
+    // Pops what was pushed last into r, returns whether it is a reference
+    private boolean popTemporary(Reg64 r) {
+        _asm.add(new Pop(r));
+        this.stackDepth -= 8;
+        return this.pushedReferences.remove(this.pushedReferences.size() - 1);
+    }
+
+    // Forgets the last count words pushed, once rsp has been moved past them
+    private void dropTemporaries(int count) {
+        this.stackDepth -= 8 * count;
+        this.pushedReferences.subList(this.pushedReferences.size() - count, this.pushedReferences.size()).clear();
+    }
+
+    // Calls clobber the caller-saved scratch registers, so the live ones are
+    // pushed before and popped after
+    private ArrayList<Reg64> saveLiveRegisters() {
+        ArrayList<Reg64> saved = new ArrayList<>();
+
+        for (Reg64 r : new ArrayList<>(liveRegisters)) {
+            if (!calleeSaved.contains(r)) {
+                pushTemporary(r);
+                saved.add(r);
+            }
+        }
+
+        return saved;
+    }
+
+    private void restoreLiveRegisters(ArrayList<Reg64> saved) {
+        for (int i = saved.size() - 1; i >= 0; i--) {
+            boolean reference = popTemporary(saved.get(i));
+            claimRegister(saved.get(i));
+            markReference(saved.get(i), reference);
+        }
+    }
+
+    // Records for the collector where the references are while call runs:
+    // the variables in scope, the words pushed since the prologue and the
+    // registers. A refill saves the caller-saved ones in its own frame, so
+    // they are only listed for its calls, anything else only leaves rbx and
+    // r12 live across a call.
+    private void safepoint(Instruction call, boolean refill) {
+        List<Integer> fpSlots = new ArrayList<>();
+        List<Integer> spSlots = new ArrayList<>();
+
+        ArrayList<Integer> offsets = new ArrayList<>();
+        if (this.thisOffset != 0) {
+            offsets.add(this.thisOffset);
+        }
+        for (LocalDecl decl : this.referenceLocals) {
+            offsets.add(decl.offset);
+        }
+
+        for (int offset : offsets) {
+            if (this.leaf) {
+                spSlots.add(slot(offset, Reg64.RAX).getDisp());
+            } else {
+                fpSlots.add(-offset);
+            }
+        }
+
+        for (int i = 0; i < this.pushedReferences.size(); i++) {
+            if (this.pushedReferences.get(i)) {
+                spSlots.add(this.stackDepth - 8 * (i + 1));
+            }
+        }
+
+        int flags = this.leaf ? StackMaps.LEAF : 0;
+        for (Reg64 r : liveRegisters) {
+            if (!referenceRegisters.contains(r)) {
+                continue;
+            }
+
+            if (r == Reg64.RBX) {
+                flags |= StackMaps.RBX_REFERENCE;
+            } else if (r == Reg64.R12) {
+                flags |= StackMaps.R12_REFERENCE;
+            } else if (refill) {
+                // saved below the return address, in the order pushed
+                spSlots.add(-16 - 8 * Arrays.asList(refillSaved).indexOf(r));
+            }
+        }
+
+        int leafFrameSize = this.leaf ? this.frameSize + this.stackDepth : 0;
+        this.stackMaps.add(call, this.frame, flags, leafFrameSize, fpSlots, spSlots);
+    }
+
+    // Sethi-Ullman number: how many registers evaluating the operand takes
+    // without spilling. Calls save everything that is live, so they only
+    // ever need the register their result ends up in.
+    private int registerNeed(AST operand) {
+        if (operand instanceof UnaryExpr) {
+            return registerNeed(((UnaryExpr) operand).expr);
+        } else if (operand instanceof BinaryExpr && isShortCircuit((BinaryExpr) operand)) {
+            // the right side is evaluated after the left one is dropped
+            return Math.max(registerNeed(((BinaryExpr) operand).left), registerNeed(((BinaryExpr) operand).right));
+        } else if (operand instanceof BinaryExpr) {
+            return pairNeed(registerNeed(((BinaryExpr) operand).left), registerNeed(((BinaryExpr) operand).right));
+        } else if (operand instanceof IxExpr) {
+            return pairNeed(1, registerNeed(((IxExpr) operand).ixExpr));
+        }
+
+        return 1;
+    }
+
+    private int pairNeed(int left, int right) {
+        return left == right ? left + 1 : Math.max(left, right);
+    }
+
+    // Whether an expression or statement calls a generated method. println is
+    // part of the runtime and does not count, its argument still might.
+    private boolean hasCall(AST operand) {
+        if (operand instanceof CallExpr) {
+            return true;
+        } else if (operand instanceof UnaryExpr) {
+            return hasCall(((UnaryExpr) operand).expr);
+        } else if (operand instanceof BinaryExpr) {
+            return hasCall(((BinaryExpr) operand).left) || hasCall(((BinaryExpr) operand).right);
+        } else if (operand instanceof IxExpr) {
+            return hasCall(((IxExpr) operand).ixExpr);
+        } else if (operand instanceof NewArrayExpr) {
+            return hasCall(((NewArrayExpr) operand).sizeExpr);
+        } else if (operand instanceof BlockStmt) {
+            return hasCall(((BlockStmt) operand).sl);
+        } else if (operand instanceof VarDeclStmt) {
+            return hasCall(((VarDeclStmt) operand).initExp);
+        } else if (operand instanceof AssignStmt) {
+            return hasCall(((AssignStmt) operand).val);
+        } else if (operand instanceof IxAssignStmt) {
+            return hasCall(((IxAssignStmt) operand).ix) || hasCall(((IxAssignStmt) operand).exp);
+        } else if (operand instanceof CallStmt) {
+            CallStmt stmt = (CallStmt) operand;
+            return calledMethod(stmt.methodRef) != this.printlnMethod || hasCall(stmt.argList.get(0));
+        } else if (operand instanceof ReturnStmt) {
+            return ((ReturnStmt) operand).returnExpr != null && hasCall(((ReturnStmt) operand).returnExpr);
+        } else if (operand instanceof IfStmt) {
+            IfStmt stmt = (IfStmt) operand;
+            return hasCall(stmt.cond) || hasCall(stmt.thenStmt) || stmt.elseStmt != null && hasCall(stmt.elseStmt);
+        } else if (operand instanceof WhileStmt) {
+            return hasCall(((WhileStmt) operand).cond) || hasCall(((WhileStmt) operand).body);
+        }
+
+        return false;
+    }
+
+    private boolean hasCall(StatementList sl) {
+        for (Statement s : sl) {
+            if (hasCall(s)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // return f(...) can jump to f instead of calling it, as long as none of
+    // f's arguments are passed on the stack
+    private boolean isTailCall(ReturnStmt stmt) {
+        if (!(stmt.returnExpr instanceof CallExpr)) {
+            return false;
+        }
+
+        CallExpr call = (CallExpr) stmt.returnExpr;
+        MethodDecl md = calledMethod(call.functionRef);
+
+        return md != null && md != this.printlnMethod
+                && (md.isStatic ? 0 : 1) + call.argList.size() <= argumentRegisters.length;
+    }
+
+    private boolean hasTailCall(Statement s) {
+        if (s instanceof ReturnStmt) {
+            return isTailCall((ReturnStmt) s);
+        } else if (s instanceof BlockStmt) {
+            for (Statement inner : ((BlockStmt) s).sl) {
+                if (hasTailCall(inner)) {
+                    return true;
+                }
+            }
+        } else if (s instanceof IfStmt) {
+            IfStmt stmt = (IfStmt) s;
+            return hasTailCall(stmt.thenStmt) || stmt.elseStmt != null && hasTailCall(stmt.elseStmt);
+        } else if (s instanceof WhileStmt) {
+            return hasTailCall(((WhileStmt) s).body);
+        }
+
+        return false;
+    }
+
+    // Leaves the value of an expression, or of what a reference denotes, in a
+    // scratch register
+    private Reg64 evaluate(AST operand) {
+        if (operand instanceof Reference) {
+            return load((RefTarget) operand.visit(this, null), operand);
+        }
+
+        return (Reg64) operand.visit(this, null);
+    }
+
+    // Evaluates operand while held stays live. If the operand needs more
+    // registers than are free, held is spilled to the stack and comes back in
+    // RCX. Returns { held, value }.
+    private Reg64[] evaluateAfter(Reg64 held, AST operand) {
+        if (held == null || registerNeed(operand) <= freeRegisters.size()) {
+            return new Reg64[] { held, evaluate(operand) };
+        }
+
+        pushTemporary(held);
+
+        Reg64 value = evaluate(operand);
+        markReference(Reg64.RCX, popTemporary(Reg64.RCX));
+
+        return new Reg64[] { Reg64.RCX, value };
+    }
+
+    // Evaluates two operands into registers, returned as { left, right }. The
+    // operand needing more registers goes first unless a call could observe
+    // the change of order.
+    private Reg64[] evaluatePair(AST left, AST right) {
+        if (!hasCall(left) && !hasCall(right) && registerNeed(right) > registerNeed(left)) {
+            Reg64[] regs = evaluateAfter(evaluate(right), left);
+            return new Reg64[] { regs[1], regs[0] };
+        }
+
+        return evaluateAfter(evaluate(left), right);
+    }
+
+    // The result of combining two operands was written to dst, keep it in a
+    // scratch register and free the other one
+    private Reg64 keepResult(Reg64 dst, Reg64 other) {
+        if (dst == Reg64.RCX) {
+            _asm.add(new Mov_rmr(new ModRMSIB(other, Reg64.RCX)));
+            return other;
+        }
+
+        releaseRegister(other);
+        return dst;
+    }
+
+    // Loads the size bytes at address into r, ints sign extended and
+    // booleans zero extended to 64 bits
+    private void loadSized(ModRMSIB address, Reg64 r, int size) {
+        address.SetRegR(r);
+
+        if (size == 4) {
+            _asm.add(new Movsxd(address));
+        } else if (size == 1) {
+            _asm.add(new Movzx(address));
+        } else {
+            _asm.add(new Mov_rrm(address));
+        }
+    }
+
+    // Stores the low size bytes of value at address
+    private void storeSized(ModRMSIB address, Reg64 value, int size) {
+        if (size == 4) {
+            address.SetRegR(Reg32.values()[value.getIdx()]);
+        } else if (size == 1) {
+            // only AL to BL have byte forms without a REX prefix, go through AL
+            if (value != Reg64.RAX) {
+                _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, value)));
+            }
+            address.SetRegR(Reg8.AL);
+        } else {
+            address.SetRegR(value);
+        }
+        _asm.add(new Mov_rmr(address));
+    }
+
+    // Bytes per element of an array, int elements are packed like int fields
+    private int elementSize(TypeDenoter eltType) {
+        return ClassLayout.packedSize(eltType);
+    }
+
+    // The identifier a reference ends in, null for this
+    private Identifier identifierOf(Reference ref) {
+        if (ref instanceof IdRef) {
+            return ((IdRef) ref).id;
+        } else if (ref instanceof QualRef) {
+            return ((QualRef) ref).id;
+        }
+
+        return null;
+    }
+
+    private MethodDecl calledMethod(Reference ref) {
+        Identifier id = identifierOf(ref);
+        return id != null && id.decl instanceof MethodDecl ? (MethodDecl) id.decl : null;
+    }
+
+    // The element type of the array ref names, from its declaration
+    private TypeDenoter elementType(Reference ref) {
+        Identifier id = identifierOf(ref);
+
+        if (id == null || id.decl == null || !(id.decl.type instanceof ArrayType)) {
+            throw new CodeGenerationError(ref, "Reference is not an array");
+        }
+        return ((ArrayType) id.decl.type).eltType;
+    }
+
+    private Reg64 load(RefTarget target, AST ast) {
+        if (target.kind == DeclKind.LOCAL) {
+            Reg64 r = allocRegister();
+            _asm.add(new Mov_rrm(slot(target.offset, r)));
+            markReference(r, target.reference);
+            return r;
+        } else if (target.kind == DeclKind.FIELD) {
+            loadSized(new ModRMSIB(target.reg, target.offset), target.reg, target.size);
+            markReference(target.reg, target.reference);
+            return target.reg;
+        } else if (target.kind == DeclKind.STATIC) {
+            Reg64 r = allocRegister();
+            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.R15, target.offset, r)));
+            markReference(r, target.reference);
+            return r;
+        }
+
+        throw new CodeGenerationError(ast, "Reference does not denote a value");
+    }
+
+    private void store(RefTarget target, Reg64 value, AST ast) {
+        if (target.kind == DeclKind.LOCAL) {
+            _asm.add(new Mov_rmr(slot(target.offset, value)));
+        } else if (target.kind == DeclKind.FIELD) {
+            storeSized(new ModRMSIB(target.reg, target.offset), value, target.size);
+            releaseRegister(target.reg);
+        } else if (target.kind == DeclKind.STATIC) {
+            _asm.add(new Mov_rmr(new ModRMSIB(Reg64.R15, target.offset, value)));
+        } else {
+            throw new CodeGenerationError(ast, "Reference cannot be assigned to");
+        }
+
+        releaseRegister(value);
+    }
+
+    // Whether every argument can be evaluated while the ones before it that go
+    // in registers are held
+    private boolean argumentsFit(ExprList argList, int held, int inRegisters) {
+        int free = freeRegisters.size();
+
+        for (Expression e : argList) {
+            if (registerNeed(e) > free) {
+                return false;
+            }
 
-        _asm.add(new Pop(Reg64.RAX));
+            if (held < inRegisters) {
+                held++;
+                free--;
+            }
+        }
+
+        return true;
+    }
+
+    // Moves values[i] to argumentRegisters[i] at once, a register can be both
+    // a source and a destination. Cycles are broken through RAX.
+    private void moveToArguments(ArrayList<Reg64> values) {
+        ArrayList<Reg64> dst = new ArrayList<>();
+        ArrayList<Reg64> src = new ArrayList<>();
+
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) != argumentRegisters[i]) {
+                dst.add(argumentRegisters[i]);
+                src.add(values.get(i));
+            }
+        }
 
-        // _asm.add(new Push(10));
-        // _asm.add(new Lea(new ModRMSIB(Reg64.RSP, 0, Reg64.RSI))); // Move num to RSI
-        // _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RDI, true), 1)); // Move 1 to RDI (file descriptor for stdout)
-        // _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RDX, true), 1)); // Move 1 to RDX (length of the integer)
-        // _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), 1)); // Move 1 to RAX (syscall number for sys_write)
-        // _asm.add(new Syscall()); // Make the syscall to print the integer
+        while (!dst.isEmpty()) {
+            boolean moved = false;
 
-        // _asm.add(new Pop(Reg64.RAX));
-        
-        return -1;
+            for (int i = 0; i < dst.size(); i++) {
+                // Nothing still to be moved needs the old value of dst
+                if (!src.contains(dst.get(i))) {
+                    _asm.add(new Mov_rmr(new ModRMSIB(dst.remove(i), src.remove(i))));
+                    moved = true;
+                    break;
+                }
+            }
+
+            if (!moved) {
+                _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, src.get(0))));
+                src.set(0, Reg64.RAX);
+            }
+        }
+    }
+
+    // The receiver of an instance method and the arguments go in the argument
+    // registers, any that do not fit are pushed left to right so the callee
+    // finds the last one at [rbp+16]. The result comes back in RAX.
+    // A tail call gives back the frame first and jumps, the callee then
+    // returns straight to our caller.
+    private void makeCall(Reference methodRef, ExprList argList, AST ast, boolean tail) {
+        ArrayList<Reg64> saved = saveLiveRegisters();
+        RefTarget target = (RefTarget) methodRef.visit(this, null);
+
+        if (target.kind != DeclKind.METHOD) {
+            throw new CodeGenerationError(ast, "Reference is not a method");
+        }
+
+        if (target.method == this.printlnMethod) {
+            releaseRegister(target.reg); // System.out itself is not needed
+
+            Reg64 value = evaluate(argList.get(0));
+            _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, value)));
+            releaseRegister(value);
+
+            _asm.add(new Call(0), this.printlnLabel);
+        } else {
+            ArrayList<Reg64> values = new ArrayList<>();
+            if (!target.method.isStatic) {
+                values.add(target.reg);
+            } else if (target.reg != null) {
+                releaseRegister(target.reg);
+            }
+
+            int count = values.size() + argList.size();
+            int inRegisters = Math.min(count, argumentRegisters.length);
+            int pushed = 0;
+
+            if (argumentsFit(argList, values.size(), inRegisters)) {
+                for (Expression e : argList) {
+                    Reg64 value = evaluate(e);
+
+                    if (values.size() < inRegisters) {
+                        values.add(value);
+                    } else {
+                        pushTemporary(value);
+                        pushed++;
+                    }
+                }
+
+                moveToArguments(values);
+                for (Reg64 r : values) {
+                    releaseRegister(r);
+                }
+            } else {
+                // Holding the arguments would run out of registers, they all
+                // go through the stack and the first ones are loaded back
+                for (Reg64 r : values) {
+                    pushTemporary(r);
+                }
+
+                for (Expression e : argList) {
+                    pushTemporary(evaluate(e));
+                }
+
+                for (int i = 0; i < inRegisters; i++) {
+                    _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RSP, 8 * (count - 1 - i), argumentRegisters[i])));
+                }
+                pushed = count;
+            }
+
+            if (tail) {
+                makeTeardown();
+                _asm.add(new Jmp(0), methodLabel(target.method));
+            } else {
+                Call call = new Call(0);
+                _asm.add(call, methodLabel(target.method));
+                safepoint(call, false);
+
+                if (pushed > 0) {
+                    _asm.add(new Add(new ModRMSIB(Reg64.RSP, true), 8 * pushed));
+                }
+            }
+            dropTemporaries(pushed);
+        }
+
+        restoreLiveRegisters(saved);
+    }
+
+    // object is the register holding the instance, null for anything else
+    private RefTarget bindingTarget(Identifier id, Reg64 object) {
+        RefTarget target = new RefTarget(id.declKind, id.offset);
+        target.size = id.size;
+
+        // Classes and methods name no value
+        if (id.declKind != DeclKind.CLASS && id.declKind != DeclKind.METHOD) {
+            target.reference = ClassLayout.isReference(id.decl.type);
+        }
+
+        if (id.declKind == DeclKind.METHOD) {
+            target.method = (MethodDecl) id.decl;
+        }
+
+        target.reg = object;
+        return target;
     }
 
     @Override
     public Object visitClassDecl(ClassDecl cd, Object arg) {
+        for (MethodDecl m : cd.methodDeclList) {
+            if (m != this.printlnMethod) {
+                m.visit(this, null);
+            }
+        }
+
         return null;
     }
 
@@ -242,57 +1512,94 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitMethodDecl(MethodDecl md, Object arg) {
-        if (md.name.equals("println") && md.parameterDeclList.size() == 1
-                && md.parameterDeclList.get(0).type.typeKind == TypeKind.INT) {
-            this.helperClass = null;
-            this.address = false;
+        _asm.bind(methodLabel(md));
+
+        this.leaf = !hasCall(md.statementList);
+        this.frameSize = md.frameSize;
+        this.stackDepth = 0;
+        this.methodExit = new Label();
+        this.usedCalleeSaved.clear();
+        this.frame = new StackMaps.Frame();
+        this.pushedReferences.clear();
+
+        // Leaf methods and methods with tail calls keep to the caller-saved
+        // registers, so their frame size is known now and a tail call has no
+        // registers to restore before it jumps
+        this.freeRegisters = new ArrayList<>(Arrays.asList(scratchRegisters));
+        this.liveRegisters.clear();
+
+        boolean tailCalls = false;
+        for (Statement s : md.statementList) {
+            tailCalls |= hasTailCall(s);
+        }
 
-            this.args.get(0).visit(this, null);
+        if (this.leaf || tailCalls) {
+            this.freeRegisters.removeAll(calleeSaved);
+        }
 
-            _asm.add(new Pop(Reg64.RAX));
+        if (!this.leaf) {
+            _asm.add(new Push(Reg64.RBP));
+            _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RBP, Reg64.RSP)));
+        } else if (this.frameSize > 0) {
+            _asm.add(new Sub(new ModRMSIB(Reg64.RSP, true), this.frameSize));
+        }
+        int prologueEnd = _asm.getCount();
+
+        // Register arguments are stored to their slots, the receiver's is the
+        // first one
+        this.thisOffset = md.isStatic ? 0 : 8;
+        int n = 0;
+        if (!md.isStatic) {
+            _asm.add(new Mov_rmr(slot(this.thisOffset, argumentRegisters[n++])));
+        }
 
-            if (this.address) {
-                _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RAX, 0, Reg64.RAX)));
+        this.referenceLocals.clear();
+        for (ParameterDecl pd : md.parameterDeclList) {
+            if (n < argumentRegisters.length) {
+                _asm.add(new Mov_rmr(slot(pd.offset, argumentRegisters[n++])));
             }
 
-            _asm.add(new Push(Reg64.RAX));
-            //_asm.add(new Mov_rmr(new ModRMSIB(Reg64.RSI, Reg64.RAX))); // Move parameter in RSI for printing
-            this.makePrintln();
+            if (ClassLayout.isReference(pd.type)) {
+                this.referenceLocals.add(pd);
+            }
         }
-        else {
-            _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RBP, Reg64.RSP)));
-            this.localVariables.push(new HashMap<>());
-            this.localVarDecls.push(new HashMap<>());
-            this.offsets.push(8);
 
-            if (!md.name.equals("main") && this.args != null) {
-                for (int i = 0; i < this.args.size(); i++) {
-                    localVariables.peek().put(md.parameterDeclList.get(i).name, this.offsets.peek());
-                    this.localVarDecls.peek().put(md.parameterDeclList.get(i).name, md.parameterDeclList.get(i));
-                    _asm.add(new Push(0));
+        for (Statement s : md.statementList) {
+            s.visit(this, null);
+        }
 
-                    this.args.get(i).visit(this, null);
-                    _asm.add(new Pop(Reg64.RAX));
-                    _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RBP, this.offsets.peek(), Reg64.RAX)));
+        // Callee-saved registers the body used get slots below the variables
+        _asm.bind(this.methodExit);
+        for (int i = 0; i < usedCalleeSaved.size(); i++) {
+            _asm.add(new Mov_rrm(slot(md.frameSize + 8 * (i + 1), usedCalleeSaved.get(i))));
+        }
+        makeEpilogue();
 
-                    this.offsets.push(this.offsets.pop() + 8);
-                }
-            }
+        if (this.leaf) {
+            return null;
+        }
 
-            for (Statement s : md.statementList) {
-                s.visit(this, null);
+        // The collector finds the caller's rbx and r12 in the same slots
+        for (int i = 0; i < usedCalleeSaved.size(); i++) {
+            if (usedCalleeSaved.get(i) == Reg64.RBX) {
+                this.frame.rbxSave = -(md.frameSize + 8 * (i + 1));
+            } else {
+                this.frame.r12Save = -(md.frameSize + 8 * (i + 1));
             }
+        }
 
-            //_asm.add(new Mov_rmr(new ModRMSIB(Reg64.RBP, Reg64.RSP)));
+        // Only now is it known which to save. Every variable has a fixed slot,
+        // the frame is reserved once. Slots of blocks that are never live
+        // together are shared.
+        int reserved = md.frameSize + 8 * usedCalleeSaved.size();
+        int at = prologueEnd;
 
-            this.localVariables.pop();
-            this.localVarDecls.pop();
-            this.offsets.pop();
+        if (reserved > 0) {
+            _asm.insert(at++, new Sub(new ModRMSIB(Reg64.RSP, true), reserved));
+        }
 
-            // Move RBP Back to base of previous stack frame
-            if (!this.offsets.empty()) {
-                _asm.add(new Sub(new ModRMSIB(Reg64.RBP, true), this.offsets.peek()));
-            }
+        for (int i = 0; i < usedCalleeSaved.size(); i++) {
+            _asm.insert(at++, new Mov_rmr(slot(md.frameSize + 8 * (i + 1), usedCalleeSaved.get(i))));
         }
 
         return null;
@@ -323,239 +1630,264 @@ public class CodeGenerator implements Visitor<Object, Object> {
         return null;
     }
 
+    // Variables declared inside s go out of scope when it ends, the binding
+    // pass may give their slots to variables that are not references
+    private void visitScoped(Statement s) {
+        int scope = this.referenceLocals.size();
+        s.visit(this, null);
+        this.referenceLocals.subList(scope, this.referenceLocals.size()).clear();
+    }
+
     @Override
     public Object visitBlockStmt(BlockStmt stmt, Object arg) {
+        int scope = this.referenceLocals.size();
+
         for (Statement s : stmt.sl) {
             s.visit(this, null);
         }
 
+        this.referenceLocals.subList(scope, this.referenceLocals.size()).clear();
         return null;
     }
 
     @Override
     public Object visitVardeclStmt(VarDeclStmt stmt, Object arg) {
-        localVariables.peek().put(stmt.varDecl.name, this.offsets.peek());
-        localVarDecls.peek().put(stmt.varDecl.name, stmt.varDecl);
-        this.offsets.push(this.offsets.pop() + 8);
-
-        _asm.add(new Push(0));
-        stmt.initExp.visit(this, null);
+        Reg64 value = evaluate(stmt.initExp);
+        _asm.add(new Mov_rmr(slot(stmt.varDecl.offset, value)));
+        releaseRegister(value);
 
-        _asm.add(new Pop(Reg64.RAX));
-        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RBP, -localVariables.peek().get(stmt.varDecl.name), Reg64.RAX)));
+        // Only a slot that has been written holds a reference
+        if (ClassLayout.isReference(stmt.varDecl.type)) {
+            this.referenceLocals.add(stmt.varDecl);
+        }
 
         return null;
     }
 
     @Override
     public Object visitAssignStmt(AssignStmt stmt, Object arg) {
-        this.helperClass = null;
-        this.address = false;
+        RefTarget target = (RefTarget) stmt.ref.visit(this, null);
 
-        stmt.ref.visit(this, null);
-
-        this.address = false;
-        stmt.val.visit(this, null);
-
-        _asm.add(new Pop(Reg64.RCX));
-
-        if (this.address) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RCX, 0, Reg64.RCX)));
-        }
-
-        _asm.add(new Pop(Reg64.RAX));
-        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, 0, Reg64.RCX))); // Value of RCX needs to be stored in location in RAX
+        Reg64[] regs = evaluateAfter(target.reg, stmt.val);
+        target.reg = regs[0];
+        store(target, regs[1], stmt);
 
         return null;
     }
 
     @Override
     public Object visitIxAssignStmt(IxAssignStmt stmt, Object arg) {
-        stmt.ix.visit(this, null);
-        Boolean temp = this.address;
-        stmt.ref.visit(this, null);
-        Boolean temp2 = this.address;
-        stmt.exp.visit(this, null);
-
-        _asm.add(new Pop(Reg64.RDX));
-        
-        if (this.address) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RDX, 0, Reg64.RDX)));
+        int size = elementSize(elementType(stmt.ref));
+        Reg64[] regs = evaluatePair(stmt.ref, stmt.ix);
+
+        // Store through [array+index*size+header] when the value fits in the
+        // registers left. Otherwise the array and the index wait on the stack,
+        // an address into the array would not follow it if the collector
+        // moved it. RCX does not survive the evaluation either.
+        if (registerNeed(stmt.exp) <= freeRegisters.size() && regs[0] != Reg64.RCX && regs[1] != Reg64.RCX) {
+            Reg64 value = evaluate(stmt.exp);
+            storeSized(new ModRMSIB(regs[0], regs[1], size, ARRAY_HEADER), value, size);
+            releaseRegister(value);
+            releaseRegister(regs[0]);
+            releaseRegister(regs[1]);
+            return null;
         }
 
-        _asm.add(new Pop(Reg64.RCX));
-
-        if (temp2) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RCX, 0, Reg64.RCX)));
-        }
-
-        _asm.add(new Pop(Reg64.RAX));
-
-        if (temp) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RAX, 0, Reg64.RAX)));
-        }
+        pushTemporary(regs[0]);
+        pushTemporary(regs[1]);
 
-        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.R8, true), 8));
-        _asm.add(new Imul(Reg64.RAX, new ModRMSIB(Reg64.R8, true)));
-        //_asm.add(new Mov_rmr(new ModRMSIB(Reg64.RCX, Reg64.RAX, 8, 0, Reg64.RDX)));
+        Reg64 value = evaluate(stmt.exp);
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, value)));
+        popTemporary(Reg64.RCX);
+        popTemporary(value);
 
-        _asm.add(new Add(new ModRMSIB(Reg64.RCX, Reg64.RAX)));
-        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RCX, 0, Reg64.RDX)));
+        storeSized(new ModRMSIB(value, Reg64.RCX, size, ARRAY_HEADER), Reg64.RAX, size);
+        releaseRegister(value);
 
         return null;
     }
 
     @Override
     public Object visitCallStmt(CallStmt stmt, Object arg) {
-        this.args = stmt.argList;
-
-        this.helperClass = null;
-        this.address = false;
-
-        stmt.methodRef.visit(this, null);
+        makeCall(stmt.methodRef, stmt.argList, stmt, false);
         return null;
     }
 
     @Override
     public Object visitReturnStmt(ReturnStmt stmt, Object arg) {
+        if (isTailCall(stmt)) {
+            CallExpr call = (CallExpr) stmt.returnExpr;
+            makeCall(call.functionRef, call.argList, call, true);
+            return null;
+        }
+
         if (stmt.returnExpr != null) {
-            stmt.returnExpr.visit(this, null);
-            _asm.add(new Pop(Reg64.RAX));
-            
-            if (this.address) {
-                _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RAX, 0, Reg64.RAX)));
-                _asm.add(new Push(Reg64.RAX));
-                this.address = false;
-            }
+            Reg64 value = evaluate(stmt.returnExpr);
+            _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, value)));
+            releaseRegister(value);
         }
+
+        _asm.add(new Jmp(0), this.methodExit);
         return null;
     }
 
-    @Override
-    public Object visitIfStmt(IfStmt stmt, Object arg) {
-        stmt.cond.visit(this, null);
-        _asm.add(new Pop(Reg64.RAX));
+    private boolean isShortCircuit(BinaryExpr expr) {
+        return expr.operator.spelling.equals("&&") || expr.operator.spelling.equals("||");
+    }
+
+    private boolean isComparison(BinaryExpr expr) {
+        return expr.operator.kind == TokenType.Comparator || expr.operator.kind == TokenType.Equality
+                || expr.operator.kind == TokenType.NotEquality;
+    }
+
+    // Jumps to target when cond evaluates to when and falls through otherwise.
+    // Conditions made of &&, || and ! become jumps between their operands, the
+    // right operand only runs when the left one did not decide the result.
+    // Comparisons jump on the flags of their cmp.
+    private void branchOn(Expression cond, boolean when, Label target) {
+        if (cond instanceof UnaryExpr && ((UnaryExpr) cond).operator.kind == TokenType.LogicalUnOperator) {
+            branchOn(((UnaryExpr) cond).expr, !when, target);
+            return;
+        }
 
-        if (this.address) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RAX, 0, Reg64.RAX)));
+        if (cond instanceof BinaryExpr && isShortCircuit((BinaryExpr) cond)) {
+            BinaryExpr expr = (BinaryExpr) cond;
+            boolean isAnd = expr.operator.spelling.equals("&&");
+
+            if (isAnd != when) {
+                // a false operand decides &&, a true one ||
+                branchOn(expr.left, when, target);
+                branchOn(expr.right, when, target);
+            } else {
+                Label skip = new Label();
+                branchOn(expr.left, !when, skip);
+                branchOn(expr.right, when, target);
+                _asm.bind(skip);
+            }
+            return;
         }
 
-        this.address = false;
+        if (cond instanceof BinaryExpr && isComparison((BinaryExpr) cond)) {
+            BinaryExpr expr = (BinaryExpr) cond;
+            Reg64[] regs = evaluatePair(expr.left, expr.right);
 
-       _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, true), 0));
+            _asm.add(new Cmp(new ModRMSIB(regs[0], regs[1])));
+            releaseRegister(regs[0]);
+            releaseRegister(regs[1]);
 
-        int start = _asm.getSize();
-        int idxStart = _asm.add(new CondJmp(Condition.E, 0, 0, false)); // 32-bit offset jump to nowhere
-        stmt.thenStmt.visit(this, null);
-        int end = _asm.getSize();
+            Condition c = when ? Condition.getCond(expr.operator) : Condition.getOppositeCond(expr.operator);
+            _asm.add(new CondJmp(c, 0), target);
+            return;
+        }
 
-        if (stmt.elseStmt != null) {
-            int elseStart = _asm.getSize();
-            int idxEnd = _asm.add(new Jmp(0)); // 32-bit offset jump to nowhere
-            end = _asm.getSize();
+        Reg64 r = evaluate(cond);
+        _asm.add(new Cmp(new ModRMSIB(r, true), 0));
+        releaseRegister(r);
+        _asm.add(new CondJmp(when ? Condition.NE : Condition.E, 0), target);
+    }
 
-            stmt.elseStmt.visit(this, null);
-            _asm.patch(idxEnd, new Jmp(elseStart, _asm.getSize(), false));
+    // The value of a && b or a || b, b is skipped when a decides it
+    private Reg64 shortCircuit(BinaryExpr expr) {
+        Label done = new Label();
+        Reg64 result = evaluate(expr.left);
+
+        _asm.add(new Cmp(new ModRMSIB(result, true), 0));
+        _asm.add(new CondJmp(expr.operator.spelling.equals("&&") ? Condition.E : Condition.NE, 0), done);
+        releaseRegister(result);
+
+        // Both paths have to leave the value in the same register
+        Reg64 right = evaluate(expr.right);
+        if (right != result) {
+            claimRegister(result);
+            _asm.add(new Mov_rmr(new ModRMSIB(result, right)));
+            releaseRegister(right);
         }
-    
-        _asm.patch(idxStart, new CondJmp(Condition.E, start, end, false));
 
-        return null;
+        _asm.bind(done);
+        return result;
     }
 
     @Override
-    public Object visitWhileStmt(WhileStmt stmt, Object arg) {
-        int condStart = _asm.getSize();
-        stmt.cond.visit(this, null);
+    public Object visitIfStmt(IfStmt stmt, Object arg) {
+        Label skipThen = new Label();
+        branchOn(stmt.cond, false, skipThen);
+        visitScoped(stmt.thenStmt);
+
+        if (stmt.elseStmt != null) {
+            Label end = new Label();
+            _asm.add(new Jmp(0), end);
+            _asm.bind(skipThen);
 
-        if (this.address) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RAX, 0, Reg64.RAX)));
+            visitScoped(stmt.elseStmt);
+            _asm.bind(end);
+        } else {
+            _asm.bind(skipThen);
         }
-        this.address = false;
 
-        _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, true), 0));
+        return null;
+    }
 
-        int start = _asm.getSize();
-        int idxStart = _asm.add(new CondJmp(Condition.E, 0, 0, false)); // 32-bit offset jump to nowhere
-        stmt.body.visit(this, null);
+    @Override
+    public Object visitWhileStmt(WhileStmt stmt, Object arg) {
+        Label condStart = new Label();
+        _asm.bind(condStart);
 
-        _asm.add(new Jmp(_asm.getSize(), condStart, false)); // Jump back to the start of the condition
-        int end = _asm.getSize();
+        Label end = new Label();
+        branchOn(stmt.cond, false, end);
+        visitScoped(stmt.body);
 
-        _asm.patch(idxStart, new CondJmp(Condition.E, start, end, false));
+        _asm.add(new Jmp(0), condStart); // Jump back to the start of the condition
+        _asm.bind(end);
 
         return null;
     }
 
     @Override
     public Object visitUnaryExpr(UnaryExpr expr, Object arg) {
-        expr.expr.visit(this, null);
-
-        _asm.add(new Pop(Reg64.RAX));
-        if (this.address) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RAX, 0, Reg64.RAX)));
-        }
-
-        this.address = false;
+        deferWrap(expr, expr.expr);
+        Reg64 value = evaluate(expr.expr);
 
         if (expr.operator.kind == TokenType.Minus) {
-            _asm.add(new Xor(new ModRMSIB(Reg64.RCX, Reg64.RCX)));
-            _asm.add(new Sub(new ModRMSIB(Reg64.RCX, Reg64.RAX)));
-            _asm.add(new Push(Reg64.RCX));
+            _asm.add(new Neg(new ModRMSIB(value, true)));
+            wrapInt(expr, value);
         } else if (expr.operator.kind == TokenType.LogicalUnOperator) {
-            _asm.add(new Xor(new ModRMSIB(Reg64.RAX, true), 1));
-            _asm.add(new Push(Reg64.RAX));
+            _asm.add(new Xor(new ModRMSIB(value, true), 1));
         }
 
-        return null;
+        return value;
     }
 
     @Override
     public Object visitBinaryExpr(BinaryExpr expr, Object arg) {
-        boolean left = false;
-        
-        this.helperClass = null;
-        this.address = false;
-        expr.left.visit(this, null);
-        left = this.address;
-
-        this.helperClass = null;
-        this.address = false;
-        expr.right.visit(this, null);
-
-        _asm.add(new Pop(Reg64.RCX));
-
-        // RCX and RAX might contain the location of a output
-        if (this.address) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RCX, 0, Reg64.RCX)));
-        }
-
-        _asm.add(new Pop(Reg64.RAX));
-
-        if (left) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RAX, 0, Reg64.RAX)));
+        if (isShortCircuit(expr)) {
+            return shortCircuit(expr);
         }
 
-        this.address = false;
+        deferWrap(expr, expr.left);
+        deferWrap(expr, expr.right);
+        Reg64[] regs = evaluatePair(expr.left, expr.right);
+        Reg64 left = regs[0];
+        Reg64 right = regs[1];
 
         if (expr.operator.spelling.equals("+")) {
-            _asm.add(new Add(new ModRMSIB(Reg64.RAX, Reg64.RCX)));
+            _asm.add(new Add(new ModRMSIB(left, right)));
         } else if (expr.operator.spelling.equals("-")) {
-            _asm.add(new Sub(new ModRMSIB(Reg64.RAX, Reg64.RCX)));
+            _asm.add(new Sub(new ModRMSIB(left, right)));
         } else if (expr.operator.spelling.equals("/")) {
-            _asm.add(new Xor(new ModRMSIB(Reg64.RDX, Reg64.RDX)));
-            _asm.add(new Idiv(new ModRMSIB(Reg64.RCX, true)));
+            _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, left)));
+            _asm.add(new Cqo());
+            _asm.add(new Idiv(new ModRMSIB(right, true)));
+            _asm.add(new Mov_rmr(new ModRMSIB(left, Reg64.RAX)));
         } else if (expr.operator.spelling.equals("*")) {
-            _asm.add(new Imul(Reg64.RAX, new ModRMSIB(Reg64.RCX, true)));
-        } else if (expr.operator.kind == TokenType.Comparator || expr.operator.kind == TokenType.Equality
-                || expr.operator.kind == TokenType.NotEquality) {
-            _asm.add(new Cmp(new ModRMSIB(Reg64.RAX, Reg64.RCX)));
+            _asm.add(new Imul(left, new ModRMSIB(right, true)));
+        }
+
+        if (isArithmetic(expr)) {
+            wrapInt(expr, left);
+        } else if (isComparison(expr)) {
+            _asm.add(new Cmp(new ModRMSIB(left, right)));
 
             if (expr.operator.spelling.equals("<")) {
-               /*_asm.add(new Push(Reg64.RAX));
-                this.makePrintln();
-                _asm.add(new Push(Reg64.RCX));
-                this.makePrintln();*/
                 _asm.add(new SetCond(Condition.LT, Reg8.AL));
             } else if (expr.operator.spelling.equals(">")) {
                 _asm.add(new SetCond(Condition.GT, Reg8.AL));
@@ -568,216 +1900,190 @@ public class CodeGenerator implements Visitor<Object, Object> {
             } else if (expr.operator.spelling.equals("!=")) {
                 _asm.add(new SetCond(Condition.NE, Reg8.AL));
             }
-        } else if (expr.operator.spelling.equals("&&")) {
-            _asm.add(new And(new ModRMSIB(Reg64.RAX, Reg64.RCX)));
-        } else if (expr.operator.spelling.equals("||")) {
-            _asm.add(new Or(new ModRMSIB(Reg64.RAX, Reg64.RCX)));
+
+            // setcc only writes AL
+            _asm.add(new And(new ModRMSIB(Reg64.RAX, true), 1));
+            _asm.add(new Mov_rmr(new ModRMSIB(left, Reg64.RAX)));
         }
-        
-        _asm.add(new Push(Reg64.RAX));
 
-        return null;
+        Reg64 result = keepResult(left, right);
+        markReference(result, false);
+        return result;
     }
 
-    @Override
-    public Object visitRefExpr(RefExpr expr, Object arg) {
-        // this.helperClass = null;
+    private boolean isArithmetic(BinaryExpr expr) {
+        String op = expr.operator.spelling;
+        return op.equals("+") || op.equals("-") || op.equals("*") || op.equals("/");
+    }
 
-        this.address = false;
-        
-        // if (expr.ref.toString().equals("IdRef")) {
-        //     IdRef temp = (IdRef) expr.ref;
+    // The operations whose low 32 bits only depend on the low 32 bits of
+    // their operands, division does not count
+    private boolean isModular(Expression expr) {
+        if (expr instanceof UnaryExpr) {
+            return ((UnaryExpr) expr).operator.kind == TokenType.Minus;
+        }
+        if (expr instanceof BinaryExpr) {
+            String op = ((BinaryExpr) expr).operator.spelling;
+            return op.equals("+") || op.equals("-") || op.equals("*");
+        }
+        return false;
+    }
 
-        //     if (!localVariables.peek().containsKey(temp.id.spelling)) {
-        //         localVariables.peek().put(temp.id.spelling, this.offsets.peek() - 8);
-        //         this.offsets.push(this.offsets.pop() + 8);
-        //     }
-        // }
+    private void deferWrap(Expression parent, Expression operand) {
+        if (isModular(parent) && isModular(operand)) {
+            this.unwrapped.add(operand);
+        }
+    }
 
-        expr.ref.visit(this, null);
+    // Arithmetic is done in 64 bits. Every int that is stored, compared,
+    // divided or passed on is sign extended from its low 32 bits, so it
+    // overflows the way Java's does and reads back the same from a 4 byte
+    // field or element as from an 8 byte variable slot.
+    private void wrapInt(Expression expr, Reg64 r) {
+        if (!this.unwrapped.remove(expr)) {
+            _asm.add(new Movsxd(new ModRMSIB(r, r)));
+        }
+    }
 
-        return null;
+    @Override
+    public Object visitRefExpr(RefExpr expr, Object arg) {
+        return load((RefTarget) expr.ref.visit(this, null), expr);
     }
 
     @Override
     public Object visitIxExpr(IxExpr expr, Object arg) {
-        expr.ixExpr.visit(this, null);
-        Boolean temp = this.address;
+        int size = elementSize(elementType(expr.ref));
+        Reg64[] regs = evaluatePair(expr.ref, expr.ixExpr);
 
-        this.address = false;
-        expr.ref.visit(this, null);
+        loadSized(new ModRMSIB(regs[0], regs[1], size, ARRAY_HEADER), regs[0], size);
 
-        _asm.add(new Pop(Reg64.RCX));
-        _asm.add(new Pop(Reg64.RAX));
-
-        if (this.address) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RCX, 0, Reg64.RCX)));
-        }
-
-        if (temp) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RAX, 0, Reg64.RAX)));
-        }
-
-        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RDX, true), 8));
-        _asm.add(new Imul(Reg64.RAX, new ModRMSIB(Reg64.RDX, true)));
-        //_asm.add(new Lea(new ModRMSIB(Reg64.RCX, Reg64.RAX, 8, 0, Reg64.RAX)));
-        _asm.add(new Add(new ModRMSIB(Reg64.RCX, Reg64.RAX)));
-        _asm.add(new Push(Reg64.RCX));
-
-        this.address = true;
-
-        return null;
+        Reg64 result = keepResult(regs[0], regs[1]);
+        markReference(result, ClassLayout.isReference(elementType(expr.ref)));
+        return result;
     }
 
     @Override
     public Object visitCallExpr(CallExpr expr, Object arg) {
-        this.args = expr.argList;
-
-        this.helperClass = null;
+        makeCall(expr.functionRef, expr.argList, expr, false);
 
-        this.address = false;
-        expr.functionRef.visit(this, null);
-
-        return null;
+        Reg64 result = allocRegister();
+        _asm.add(new Mov_rmr(new ModRMSIB(result, Reg64.RAX)));
+        markReference(result, ClassLayout.isReference(calledMethod(expr.functionRef).type));
+        return result;
     }
 
     @Override
     public Object visitLiteralExpr(LiteralExpr expr, Object arg) {
-        expr.lit.visit(this, null);
-        this.address = false;
-        return null;
+        return expr.lit.visit(this, null);
     }
 
     @Override
     public Object visitNewObjectExpr(NewObjectExpr expr, Object arg) {
-        this.makeMalloc();
-        _asm.add(new Push(Reg64.RAX));
+        ClassDecl c = (ClassDecl) expr.classtype.className.decl;
+
+        // The header makes distinct objects distinct even without fields.
+        // Fresh memory is zero, it is only written when there is something to
+        // tell the collector.
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, true), HEADER + c.layout.instanceSize));
+        makeAllocation();
+
+        Reg64 r = allocRegister();
+        if (c.layout.referenceCount > 0) {
+            long header = c.layout.instanceSize | (long) c.layout.referenceCount << 32;
+            _asm.add(new Mov_ri64(r, header));
+            _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, -HEADER, r)));
+        } else if (c.layout.instanceSize > 0) {
+            _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, -HEADER), c.layout.instanceSize));
+        }
 
-        return null;
+        _asm.add(new Mov_rmr(new ModRMSIB(r, Reg64.RAX)));
+        markReference(r, true);
+        return r;
     }
 
     @Override
     public Object visitNewArrayExpr(NewArrayExpr expr, Object arg) {
-        /*expr.sizeExpr.visit(this, null);
-        _asm.add(new Pop(Reg64.RAX));
-
-        if (this.address) {
-            _asm.add(new Mov_rrm(new ModRMSIB(Reg64.RAX, 0, Reg64.RAX)));
+        int size = elementSize(expr.eltType);
+        Reg64 r = evaluate(expr.sizeExpr);
+
+        // A negative length would move the heap pointer backwards
+        _asm.add(new Cmp(new ModRMSIB(r, true), 0));
+        _asm.add(new CondJmp(Condition.LT, 0), this.negativeSizeLabel);
+
+        // The length goes in a word in front of the elements, after the
+        // collector's header. The heap is fresh from mmap or behind the last
+        // block the collector copied, so the elements are already zero.
+        if (size % 8 == 0) {
+            _asm.add(new Lea(new ModRMSIB(r, size, HEADER + ARRAY_HEADER, Reg64.RAX)));
+        } else {
+            // rounded up so the next allocation stays 8 byte aligned
+            _asm.add(new Lea(new ModRMSIB(r, size, HEADER + ARRAY_HEADER + 7, Reg64.RAX)));
+            _asm.add(new And(new ModRMSIB(Reg64.RAX, true), -8));
         }
+        makeAllocation();
 
-        this.address = false;*/
-
-        this.makeMalloc();
-        _asm.add(new Push(Reg64.RAX));
-
-        return null;
+        int header = ARRAY_BLOCK | size << 3;
+        if (ClassLayout.isReference(expr.eltType)) {
+            header |= REFERENCE_ARRAY;
+        }
+        _asm.add(new Mov_rmi(new ModRMSIB(Reg64.RAX, -HEADER), header));
+        _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, 0, r)));
+        _asm.add(new Mov_rmr(new ModRMSIB(r, Reg64.RAX)));
+        markReference(r, true);
+        return r;
     }
 
     @Override
     public Object visitThisRef(ThisRef ref, Object arg) {
-        // TODO Auto-generated method stub
-        this.address = true;
-        return null;
+        RefTarget target = new RefTarget(DeclKind.LOCAL, this.thisOffset);
+        target.reference = true;
+        return target;
     }
 
     @Override
     public Object visitIdRef(IdRef ref, Object arg) {
-        if (localVariables.peek().containsKey(ref.id.spelling)) {
-            String typeClass = null;
+        Identifier id = ref.id;
 
-            if (this.localVarDecls.peek().get(ref.id.spelling).toString().equals("VarDecl")) {
-                typeClass = ((VarDecl) this.localVarDecls.peek().get(ref.id.spelling)).className;
-            } else if (this.localVarDecls.peek().get(ref.id.spelling).toString().equals("ParameterDecl")) {
-                typeClass = ((ParameterDecl) this.localVarDecls.peek().get(ref.id.spelling)).className;
-            } else {
-                typeClass = ((FieldDecl) this.localVarDecls.peek().get(ref.id.spelling)).className;
-            }
-
-            for (ClassDecl c : this.classes) {
-                if (c.name.equals(typeClass)) {
-                    this.helperClass = c;
-                    break;
-                }
-            }
+        if (id.decl == null) {
+            throw new CodeGenerationError(ref, "Cannot resolve " + id.spelling);
+        }
 
-            _asm.add(new Lea(new ModRMSIB(Reg64.RBP, -localVariables.peek().get(ref.id.spelling), Reg64.RAX)));
-            _asm.add(new Push(Reg64.RAX));
-        } else {
-            for (ClassDecl c : this.classes) {
-                if (c.name.equals(ref.id.spelling)) {
-                    this.helperClass = c;
-                    _asm.add(new Push(0));
-                    break;
-                }
-            }
+        // Members of the current class are reached through an implicit this
+        Reg64 object = null;
+        if (id.declKind == DeclKind.FIELD || (id.declKind == DeclKind.METHOD && !((MethodDecl) id.decl).isStatic)) {
+            object = allocRegister();
+            _asm.add(new Mov_rrm(slot(this.thisOffset, object)));
+            markReference(object, true);
         }
 
-        this.address = true;
-        return null;
+        return bindingTarget(id, object);
     }
 
     @Override
     public Object visitQRef(QualRef ref, Object arg) {
-        ref.ref.visit(this, null);
-        ref.id.visit(this, null);
-        return null;
-    }
-
-    @Override
-    public Object visitIdentifier(Identifier id, Object arg) {
-        ClassDecl tempHelperClassStore = this.helperClass;
- 
-        if (this.helperClass == null) {
-            _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RCX, Reg64.RBP)));
-            _asm.add(new Sub(new ModRMSIB(Reg64.RCX, true), localVariables.peek().get(id.spelling)));
-
-            _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, Reg64.RCX))); // RAX needs to store location of RBP + offset
-            _asm.add(new Push(Reg64.RAX));
-        } else {
-            _asm.add(new Pop(Reg64.RAX));
-
-            int fieldOffset = 0;
-            boolean field = false;
-            boolean isStatic = false;
-
-            for (FieldDecl f : this.helperClass.fieldDeclList) {
-                if (!f.name.equals(id.spelling)) {
-                    fieldOffset += 8;
-                } else {
-                    field = true;
-                    isStatic = f.isStatic;
-                    for (ClassDecl c : this.classes) {
-                        if (c.name.equals(f.className)) {
-                            this.helperClass = c;
-                            break;
-                        }
-                    }
-                    break;
-                }
-            }
+        RefTarget qualifier = (RefTarget) ref.ref.visit(this, null);
+        Identifier id = ref.id;
+        Reg64 object = null;
 
-            if (!field) {
-                for (MethodDecl m : this.helperClass.methodDeclList) {
-                    if (m.name.equals(id.spelling)) {
+        if (id.decl == null) {
+            throw new CodeGenerationError(ref, "Cannot resolve " + id.spelling);
+        }
 
-                        m.visit(this, null);
-                        _asm.add(new Push(Reg64.RAX));
-                        return null;
-                    }
-                }
-            } else if (!isStatic) {
-                _asm.add(new Add(new ModRMSIB(Reg64.RAX, true), fieldOffset));
-                _asm.add(new Push(Reg64.RAX));
-            } else {
-                _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RCX, Reg64.R15)));
-                _asm.add(new Add(new ModRMSIB(Reg64.RCX, true),
-                        this.staticLocations.get(tempHelperClassStore.name).get(id.spelling)));
+        if (qualifier.kind != DeclKind.CLASS) {
+            object = load(qualifier, ref);
 
-                _asm.add(new Mov_rmr(new ModRMSIB(Reg64.RAX, Reg64.RCX))); // RAX needs to store RBP + offset
-                _asm.add(new Push(Reg64.RAX));
+            // Static members reached through an object do not need it
+            if (((MemberDecl) id.decl).isStatic) {
+                releaseRegister(object);
+                object = null;
             }
         }
-        this.address = true;
+
+        return bindingTarget(id, object);
+    }
+
+    @Override
+    public Object visitIdentifier(Identifier id, Object arg) {
         return null;
     }
 
@@ -788,26 +2094,29 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitIntLiteral(IntLiteral num, Object arg) {
-        _asm.add(new Push(Integer.valueOf(num.spelling)));
-        return null;
+        Reg64 r = allocRegister();
+        _asm.add(new Mov_rmi(new ModRMSIB(r, true), Integer.valueOf(num.spelling)));
+        return r;
     }
 
     @Override
     public Object visitBooleanLiteral(BooleanLiteral bool, Object arg) {
+        Reg64 r = allocRegister();
+
         if (bool.spelling.equals("true")) {
-            _asm.add(new Push(1));
+            _asm.add(new Mov_rmi(new ModRMSIB(r, true), 1));
         } else {
-            _asm.add(new Push(0));
+            _asm.add(new Mov_rmi(new ModRMSIB(r, true), 0));
         }
 
-        return null;
+        return r;
     }
 
     @Override
     public Object visitNullLiteral(NullLiteral bool, Object arg) {
-        // TODO: Potential Issue
-        _asm.add(new Push(0));
+        Reg64 r = allocRegister();
+        _asm.add(new Mov_rmi(new ModRMSIB(r, true), 0));
 
-        return null;
+        return r;
     }
-}
\ No newline at end of file
+}
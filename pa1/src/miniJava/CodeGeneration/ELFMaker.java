@@ -70,6 +70,12 @@ public class ELFMaker {
 		int secIdx = 0;
 		for( ELFSection sh : sections ) {
 			sh.sh_addr = sdataStartAddress + vSectionSizes;
+			if( sh == bss ) {
+				// writes to a page that also holds code stall the pipeline,
+				// so .bss starts on a page of its own
+				sh.sh_addr = ( sh.sh_addr + 0xFFF ) & ~0xFFFL;
+				vSectionSizes = sh.sh_addr - sdataStartAddress;
+			}
 			sh.sh_offset = sdataStartAddress + pSectionSizes;
 			sh.secIdx = secIdx;
 			secIdx++;
@@ -108,7 +114,7 @@ public class ELFMaker {
 		textSeg.p_vaddr = text.sh_addr;
 		textSeg.p_paddr = text.sh_addr;
 		textSeg.p_filesz = text.sh_size;
-		textSeg.p_memsz = text.sh_size;
+		textSeg.p_memsz = bss.sh_addr + bss.sh_size - text.sh_addr; // bss follows text in memory
 		
 		elf.e_entry = text.sh_addr + entrypoint;
 		elf.e_shoff = shStartAddress;
@@ -0,0 +1,465 @@
+package miniJava.CodeGeneration;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import miniJava.CodeGeneration.x64.*;
+import miniJava.CodeGeneration.x64.ISA.*;
+
+// Peephole optimizer over a finished InstructionList. A small window slides
+// over the generated methods and rewrites register shuffling the code
+// generator leaves behind (constants loaded into a register just to be
+// pushed or added, values moved into a register just to be moved on, ...).
+//
+// Instructions before firstMethod are the startup code and the runtime
+// routines, those are left exactly as they are. Branches and calls are
+// followed to the instruction they target, once nothing more changes the
+// list is handed back with those targets for InstructionList.relax to lay
+// out.
+public class Peephole {
+	private InstructionList _asm;
+	private List<Instruction> _code;
+	private int _start;
+
+	// relative branch or call -> the instruction it lands on, null for the
+	// end of the code
+	private Map<Instruction,Instruction> _branchTarget = new IdentityHashMap<Instruction,Instruction>();
+	private Set<Instruction> _targets = Collections.newSetFromMap(new IdentityHashMap<Instruction,Boolean>());
+
+	// removed or rewritten instruction -> what took its place
+	private Map<Instruction,Instruction> _forward = new IdentityHashMap<Instruction,Instruction>();
+
+	private Map<Instruction,Integer> _index = new IdentityHashMap<Instruction,Integer>();
+	private boolean _indexDirty = true;
+
+	private Map<String,Integer> _removed = new LinkedHashMap<String,Integer>();
+	private int _sizeBefore;
+
+	// registers a rule may drop or retarget a write to. RSP and RBP hold the
+	// frame, R13-R15 the heap and the statics.
+	private static final int CANDIDATES = mask(Reg64.RAX, Reg64.RCX, Reg64.RDX, Reg64.RBX, Reg64.RSI, Reg64.RDI,
+			Reg64.R8, Reg64.R9, Reg64.R10, Reg64.R11, Reg64.R12);
+	private static final int ALL = 0xFFFF;
+
+	// generated methods take their arguments in these and keep these intact
+	private static final int ARGUMENTS = mask(Reg64.RDI, Reg64.RSI, Reg64.RDX, Reg64.RCX, Reg64.R8, Reg64.R9);
+	private static final int CALLEE_SAVED = mask(Reg64.RBX, Reg64.R12);
+
+	// how far isDead follows the code before giving up
+	private static final int SCAN_LIMIT = 256;
+
+	public Peephole(InstructionList asm, int firstMethod) {
+		_asm = asm;
+		_start = firstMethod;
+		_sizeBefore = asm.getSize();
+
+		_code = new ArrayList<Instruction>();
+		for( int i = 0; i < asm.getCount(); ++i )
+			_code.add(asm.get(i));
+
+		_branchTarget.putAll(asm.getBranchTargets());
+		for( Instruction target : _branchTarget.values() ) {
+			if( target != null )
+				_targets.add(target);
+		}
+
+		for( String rule : new String[] { "push/pop", "self move", "move back", "store/load", "dead write",
+				"retarget", "push imm", "imm operand", "fold", "jump to next", "unreachable" } )
+			_removed.put(rule, 0);
+	}
+
+	public void run() {
+		boolean changed = true;
+		while( changed ) {
+			changed = false;
+			for( int i = _start; i < _code.size(); ++i )
+				changed |= applyRules(i);
+		}
+
+		Map<Instruction,Instruction> targets = new IdentityHashMap<Instruction,Instruction>();
+		for( Instruction ins : _code ) {
+			if( isRelative(ins) )
+				targets.put(ins, resolve(_branchTarget.get(ins)));
+		}
+		_asm.replaceAll(_code, targets);
+	}
+
+	public void printStats(PrintStream out) {
+		int total = 0;
+		for( Map.Entry<String,Integer> rule : _removed.entrySet() ) {
+			out.printf("peephole: %-12s %d%n", rule.getKey(), rule.getValue());
+			total += rule.getValue();
+		}
+		out.printf("peephole: %d instructions, %d bytes removed%n", total, _sizeBefore - _asm.getSize());
+	}
+
+	private boolean applyRules(int i) {
+		Instruction a = _code.get(i);
+		Instruction b = i + 1 < _code.size() && !_targets.contains(_code.get(i + 1)) ? _code.get(i + 1) : null;
+
+		// push a; pop b
+		if( a instanceof Push && b instanceof Pop && b.operands.getRegRM() != null ) {
+			Reg64 to = (Reg64)b.operands.getRegRM();
+			if( a.operands == null )
+				return replace("push/pop", i, 2, new Mov_rmi(new ModRMSIB(to, true), a.imm.intValue()));
+			if( a.operands.getRegRM() == to )
+				return replace("push/pop", i, 2);
+			if( a.operands.getRegRM() != null )
+				return replace("push/pop", i, 2, new Mov_rmr(new ModRMSIB(to, a.operands.getRegRM())));
+		}
+
+		// mov r,r
+		if( isRegMove(a) && a.operands.getRegRM() == a.operands.getRegR() )
+			return replace("self move", i, 1);
+
+		// mov a,b; mov b,a
+		if( isRegMove(a) && isRegMove(b) && a.operands.getRegRM() == b.operands.getRegR()
+				&& a.operands.getRegR() == b.operands.getRegRM() )
+			return replace("move back", i + 1, 1);
+
+		// mov [m],r; mov r2,[m]
+		if( a instanceof Mov_rmr && b instanceof Mov_rrm && a.operands.getRegRM() == null
+				&& a.operands.getRegR() instanceof Reg64 && b.operands.getRegR() instanceof Reg64
+				&& sameAddress(a.operands, b.operands) ) {
+			if( b.operands.getRegR() == a.operands.getRegR() )
+				return replace("store/load", i + 1, 1);
+			return replace("store/load", i + 1, 1,
+					new Mov_rmr(new ModRMSIB((Reg64)b.operands.getRegR(), a.operands.getRegR())));
+		}
+
+		Reg64 dest = moveDest(a);
+
+		// a write nothing reads
+		if( dest != null && isDead(dest, i + 1) )
+			return replace("dead write", i, 1);
+
+		// mov r,x; mov d,r -> mov d,x
+		if( (dest != null || a instanceof Pop && a.operands.getRegRM() != null) && isRegMove(b) ) {
+			Reg64 r = dest != null ? dest : (Reg64)a.operands.getRegRM();
+			Reg64 d = (Reg64)b.operands.getRegRM();
+			if( b.operands.getRegR() == r && d != r && (mask(d) & CANDIDATES) != 0 && isDead(r, i + 2) ) {
+				Instruction moved = a instanceof Pop ? new Pop(d) : retarget(a, d);
+				if( moved != null )
+					return replace("retarget", i, 2, moved);
+			}
+		}
+
+		if( a instanceof Mov_rmi && dest != null && b != null ) {
+			int value = a.imm.intValue();
+
+			// mov r,imm; push r
+			if( b instanceof Push && b.operands != null && b.operands.getRegRM() == dest && isDead(dest, i + 2) )
+				return replace("push imm", i, 2, new Push(value));
+
+			// mov r,imm; imul x,r -> imul x,x,imm
+			if( b instanceof Imul && b.imm == null && b.operands.getRegRM() == dest
+					&& b.operands.getRegR() instanceof Reg64 && b.operands.getRegR() != dest && isDead(dest, i + 2) ) {
+				Reg64 x = (Reg64)b.operands.getRegR();
+				return replace("imm operand", i, 2, new Imul(x, new ModRMSIB(x, true), value));
+			}
+
+			// mov r,imm; op x,r -> op x,imm
+			if( b.operands != null && b.imm == null && b.operands.getRegR() == dest
+					&& b.operands.getRegRM() instanceof Reg64 && b.operands.getRegRM() != dest
+					&& isDead(dest, i + 2) ) {
+				Instruction folded = withImmediate(b, value);
+				if( folded != null )
+					return replace("imm operand", i, 2, folded);
+			}
+
+			// mov r,imm; imul r,r,k (or add/sub r,k) -> mov r,imm'
+			if( b.operands != null && b.imm != null && b.operands.getRegRM() == dest && !readsFlags(i + 2) ) {
+				Long folded = null;
+				if( b instanceof Imul && b.operands.getRegR() == dest )
+					folded = (long)value * b.imm;
+				else if( b instanceof Add )
+					folded = (long)value + b.imm;
+				else if( b instanceof Sub )
+					folded = (long)value - b.imm;
+
+				if( folded != null && x64.isInt(folded) )
+					return replace("fold", i, 2, new Mov_rmi(new ModRMSIB(dest, true), folded.intValue()));
+			}
+		}
+
+		// jmp to the instruction right after it
+		if( a instanceof Jmp && isRelative(a) ) {
+			Instruction target = resolve(_branchTarget.get(a));
+			if( target != null && i + 1 < _code.size() && target == _code.get(i + 1) )
+				return replace("jump to next", i, 1);
+		}
+
+		// nothing falls through a ret or jmp, only branches get past it
+		if( (a instanceof Ret || a instanceof Jmp) && b != null )
+			return replace("unreachable", i + 1, 1);
+
+		return false;
+	}
+
+	// Replaces count instructions at i. Branches into the window go to the
+	// first replacement, or the instruction after it if nothing replaces it.
+	private boolean replace(String rule, int i, int count, Instruction... with) {
+		Instruction first = _code.get(i);
+		for( int k = 0; k < count; ++k )
+			_code.remove(i);
+		for( int k = with.length - 1; k >= 0; --k )
+			_code.add(i, with[k]);
+
+		Instruction next = i < _code.size() ? _code.get(i) : null;
+		_forward.put(first, next);
+		if( _targets.contains(first) && next != null )
+			_targets.add(next);
+
+		_removed.put(rule, _removed.get(rule) + count - with.length);
+		_indexDirty = true;
+		return true;
+	}
+
+	private Instruction resolve(Instruction ins) {
+		while( ins != null && _forward.containsKey(ins) )
+			ins = _forward.get(ins);
+		return ins;
+	}
+
+	private int indexOf(Instruction ins) {
+		if( _indexDirty ) {
+			_index.clear();
+			for( int i = 0; i < _code.size(); ++i )
+				_index.put(_code.get(i), i);
+			_indexDirty = false;
+		}
+		return _index.get(ins);
+	}
+
+	// Nothing reads r from instruction i on before writing it, along every
+	// path the code can take
+	private boolean isDead(Reg64 r, int from) {
+		int bit = mask(r);
+		if( (bit & CANDIDATES) == 0 )
+			return false;
+
+		Deque<Integer> work = new ArrayDeque<Integer>();
+		Set<Integer> seen = new HashSet<Integer>();
+		work.push(from);
+		int steps = 0;
+
+		while( !work.isEmpty() ) {
+			int i = work.pop();
+			while( true ) {
+				if( i < _start || i >= _code.size() || ++steps > SCAN_LIMIT )
+					return false;
+				if( !seen.add(i) )
+					break;
+
+				Instruction ins = _code.get(i);
+				if( (uses(ins) & bit) != 0 )
+					return false;
+				if( (defs(ins) & bit) != 0 )
+					break;
+
+				if( ins instanceof Ret ) {
+					// the result goes back in RAX and the callee-saved ones are
+					// the caller's, callers keep everything else
+					if( (bit & (mask(Reg64.RAX) | CALLEE_SAVED)) != 0 )
+						return false;
+					break;
+				}
+
+				if( ins instanceof Call ) {
+					// generated methods only preserve the callee-saved registers
+					if( isRelative(ins) && !isRuntimeCall(ins) && (bit & CALLEE_SAVED) == 0 )
+						break;
+				} else if( ins instanceof Jmp || ins instanceof CondJmp ) {
+					if( !isRelative(ins) )
+						return false;
+					Instruction target = resolve(_branchTarget.get(ins));
+					if( target == null )
+						return false;
+					if( ins instanceof Jmp ) {
+						i = indexOf(target);
+						continue;
+					}
+					work.push(indexOf(target));
+				} else if( ins instanceof Syscall ) {
+					return false;
+				}
+
+				++i;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean readsFlags(int i) {
+		if( i >= _code.size() ) return false;
+		Instruction ins = _code.get(i);
+		return ins instanceof SetCond || ins instanceof CondJmp;
+	}
+
+	private boolean isRuntimeCall(Instruction call) {
+		Instruction target = resolve(_branchTarget.get(call));
+		return target != null && indexOf(target) < _start;
+	}
+
+	private static boolean isRelative(Instruction ins) {
+		return InstructionList.isRelative(ins);
+	}
+
+	// mov r64,r64
+	private static boolean isRegMove(Instruction ins) {
+		return ins instanceof Mov_rmr && ins.operands.getRegRM() instanceof Reg64
+				&& ins.operands.getRegR() instanceof Reg64;
+	}
+
+	// The register an instruction that does nothing but write one register
+	// writes, or null
+	private static Reg64 moveDest(Instruction ins) {
+		Reg r = null;
+		if( ins instanceof Mov_rrm || ins instanceof Lea && ins.operands.getRegDisp() != Reg64.RIP )
+			r = ins.operands.getRegR();
+		else if( isRegMove(ins) || ins instanceof Mov_rmi || ins instanceof Mov_ri64 )
+			r = ins.operands.getRegRM();
+
+		if( !(r instanceof Reg64) || (mask(r) & CANDIDATES) == 0 )
+			return null;
+		return (Reg64)r;
+	}
+
+	// The same instruction writing d instead
+	private static Instruction retarget(Instruction ins, Reg64 d) {
+		ModRMSIB m = ins.operands;
+		if( ins instanceof Mov_rmi )
+			return new Mov_rmi(new ModRMSIB(d, true), ins.imm.intValue());
+		if( ins instanceof Mov_ri64 )
+			return new Mov_ri64(d, ins.imm);
+		if( isRegMove(ins) )
+			return new Mov_rmr(new ModRMSIB(d, m.getRegR()));
+
+		ModRMSIB source = withR(m, d);
+		if( source == null )
+			return null;
+		return ins instanceof Lea ? new Lea(source) : new Mov_rrm(source);
+	}
+
+	private static ModRMSIB withR(ModRMSIB m, Reg r) {
+		if( m.getRegRM() != null )
+			return new ModRMSIB((Reg64)m.getRegRM(), r);
+		if( m.getRegDisp() != null && m.getRegIdx() != null )
+			return new ModRMSIB(m.getRegDisp(), m.getRegIdx(), m.getMult(), m.getDisp(), r);
+		if( m.getRegDisp() != null )
+			return new ModRMSIB(m.getRegDisp(), m.getDisp(), r);
+		return null;
+	}
+
+	// op x,r as op x,imm
+	private static Instruction withImmediate(Instruction ins, int imm) {
+		Reg64 x = (Reg64)ins.operands.getRegRM();
+		if( ins instanceof Add ) return new Add(new ModRMSIB(x, true), imm);
+		if( ins instanceof Sub ) return new Sub(new ModRMSIB(x, true), imm);
+		if( ins instanceof And ) return new And(new ModRMSIB(x, true), imm);
+		if( ins instanceof Or ) return new Or(new ModRMSIB(x, true), imm);
+		if( ins instanceof Xor ) return new Xor(new ModRMSIB(x, true), imm);
+		if( ins instanceof Cmp ) return new Cmp(new ModRMSIB(x, true), imm);
+		return null;
+	}
+
+	private static boolean sameAddress(ModRMSIB a, ModRMSIB b) {
+		return a.getRegRM() == null && b.getRegRM() == null && a.getRegDisp() != Reg64.RIP
+				&& a.getRegDisp() == b.getRegDisp() && a.getRegIdx() == b.getRegIdx()
+				&& a.getMult() == b.getMult() && a.getDisp() == b.getDisp();
+	}
+
+	// Registers an instruction reads. Anything not described here reads
+	// everything.
+	private int uses(Instruction ins) {
+		ModRMSIB m = ins.operands;
+
+		if( ins instanceof Jmp || ins instanceof CondJmp || ins instanceof Ret )
+			return m == null ? 0 : ALL;
+		if( ins instanceof Call )
+			return m != null ? ALL : isRuntimeCall(ins) ? mask(Reg64.RAX) : ARGUMENTS;
+		if( ins instanceof SetCond || ins instanceof Cqo )
+			return mask(Reg64.RAX);
+		if( ins instanceof Mov_ri64 || m == null && ins instanceof Push )
+			return 0;
+		if( ins instanceof Push || ins instanceof Pop )
+			return m.getRegRM() != null ? ( ins instanceof Push ? mask(m.getRegRM()) : 0 ) : address(m);
+
+		if( ins instanceof Mov_rrm || ins instanceof Movsxd || ins instanceof Movzx || ins instanceof Lea ) {
+			int read = m.getRegRM() != null ? mask(m.getRegRM()) : address(m);
+			return m.getRegR() instanceof Reg8 ? read | mask(m.getRegR()) : read;
+		}
+		if( ins instanceof Mov_rmr ) {
+			if( m.getRegRM() == null )
+				return mask(m.getRegR()) | address(m);
+			return m.getRegR() instanceof Reg8 ? mask(m.getRegR()) | mask(m.getRegRM()) : mask(m.getRegR());
+		}
+		if( ins instanceof Mov_rmi )
+			return m.getRegRM() != null ? 0 : address(m);
+
+		if( m == null )
+			return ALL;
+
+		int rm = m.getRegRM() != null ? mask(m.getRegRM()) : address(m);
+		if( ins instanceof Imul ) {
+			if( m.getRegR() instanceof Reg32 ) // imul rm, RDX:RAX := RAX * rm
+				return rm | mask(Reg64.RAX);
+			return ins.imm != null ? rm : rm | mask(m.getRegR());
+		}
+		if( ins instanceof Idiv )
+			return rm | mask(Reg64.RAX, Reg64.RDX);
+		if( ins instanceof Neg || ins instanceof Not || ins instanceof Shr )
+			return rm;
+		if( ins instanceof Xor && ins.imm == null && m.getRegRM() != null && m.getRegRM() == m.getRegR() )
+			return 0;
+		if( ins instanceof SimpleMathInstruction )
+			return ins.imm != null ? rm : rm | mask(m.getRegR());
+
+		return ALL;
+	}
+
+	// Registers an instruction writes
+	private int defs(Instruction ins) {
+		ModRMSIB m = ins.operands;
+
+		if( ins instanceof Call )
+			return m == null ? mask(Reg64.RAX) : 0;
+		if( ins instanceof SetCond )
+			return mask(Reg64.RAX);
+		if( ins instanceof Cqo )
+			return mask(Reg64.RDX);
+		if( m == null )
+			return 0;
+		if( ins instanceof Push || ins instanceof Cmp || ins instanceof Jmp )
+			return 0;
+		if( ins instanceof Idiv || ins instanceof Imul && m.getRegR() instanceof Reg32 )
+			return mask(Reg64.RAX, Reg64.RDX);
+		if( ins instanceof Mov_rrm || ins instanceof Movsxd || ins instanceof Movzx || ins instanceof Lea
+				|| ins instanceof Imul )
+			return mask(m.getRegR());
+		return m.getRegRM() != null ? mask(m.getRegRM()) : 0;
+	}
+
+	private static int address(ModRMSIB m) {
+		return mask(m.getRegDisp(), m.getRegIdx());
+	}
+
+	private static int mask(Reg... regs) {
+		int bits = 0;
+		for( Reg r : regs ) {
+			if( r != null && r.getIdx() >= 0 )
+				bits |= 1 << r.getIdx();
+		}
+		return bits;
+	}
+}
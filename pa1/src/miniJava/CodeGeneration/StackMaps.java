@@ -0,0 +1,127 @@
+package miniJava.CodeGeneration;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import miniJava.CodeGeneration.x64.Instruction;
+import miniJava.CodeGeneration.x64.InstructionList;
+import miniJava.CodeGeneration.x64.x64;
+
+// Where the references of a frame are while it makes a call the collector
+// can run during, and the table of them the collector looks return addresses
+// up in.
+//
+// The table is a count, then that many pairs of the return address and the
+// address of its description, sorted by return address, then the
+// descriptions. Every number is 32 bits and every address is relative to
+// the start of the table. A description is
+//
+//     flags, leaf frame size, rbx save, r12 save,
+//     count, fp offsets..., count, sp offsets...
+//
+// where sp is the stack pointer at the call and fp the frame's rbp. A leaf
+// frame has no rbp, its return address is the leaf frame size past sp. The
+// saves are where the method put its caller's rbx and r12, fp relative, 0
+// when it did not.
+class StackMaps {
+    static final int LEAF = 1;
+    static final int RBX_REFERENCE = 2;
+    static final int R12_REFERENCE = 4;
+
+    // Where a method saved the callee-saved registers, only known once its
+    // body has been generated
+    static class Frame {
+        int rbxSave = 0;
+        int r12Save = 0;
+    }
+
+    private static class Site {
+        Instruction call;
+        Frame frame;
+        int flags;
+        int leafFrameSize;
+        List<Integer> fpSlots;
+        List<Integer> spSlots;
+        int idx = -1;
+    }
+
+    private List<Site> sites = new ArrayList<>();
+
+    void add(Instruction call, Frame frame, int flags, int leafFrameSize, List<Integer> fpSlots,
+            List<Integer> spSlots) {
+        Site site = new Site();
+        site.call = call;
+        site.frame = frame;
+        site.flags = flags;
+        site.leafFrameSize = leafFrameSize;
+        site.fpSlots = fpSlots;
+        site.spSlots = spSlots;
+        sites.add(site);
+    }
+
+    // Finds the calls once the peephole pass is done with the code. Laying it
+    // out replaces them but keeps their place in the list.
+    void locate(InstructionList asm) {
+        Map<Instruction, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < asm.getCount(); i++) {
+            index.put(asm.get(i), i);
+        }
+
+        List<Site> located = new ArrayList<>();
+        for (Site site : sites) {
+            Integer idx = index.get(site.call);
+
+            // unreachable calls are gone
+            if (idx != null) {
+                site.idx = idx;
+                located.add(site);
+            }
+        }
+        sites = located;
+    }
+
+    // The table for code that has been laid out, to be placed at address
+    byte[] table(InstructionList asm, int address) {
+        sites.sort((a, b) -> a.idx - b.idx);
+
+        ByteArrayOutputStream descriptions = new ByteArrayOutputStream();
+        Map<List<Integer>, Integer> shared = new HashMap<>();
+        int descriptionStart = 4 + 8 * sites.size();
+
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        x64.writeInt(table, sites.size());
+
+        for (Site site : sites) {
+            List<Integer> words = new ArrayList<>();
+            words.add(site.flags);
+            words.add(site.leafFrameSize);
+            words.add(site.frame.rbxSave);
+            words.add(site.frame.r12Save);
+            words.add(site.fpSlots.size());
+            words.addAll(site.fpSlots);
+            words.add(site.spSlots.size());
+            words.addAll(site.spSlots);
+
+            // Calls made in the same state share a description
+            Integer at = shared.get(words);
+            if (at == null) {
+                at = descriptionStart + descriptions.size();
+                shared.put(words, at);
+                for (int word : words) {
+                    x64.writeInt(descriptions, word);
+                }
+            }
+
+            Instruction call = asm.get(site.idx);
+            x64.writeInt(table, call.startAddress + call.size() - address);
+            x64.writeInt(table, at);
+        }
+
+        x64.writeBytes(table, descriptions.toByteArray());
+        return table.toByteArray();
+    }
+}
@@ -0,0 +1,9 @@
+package miniJava.CodeGeneration.x64;
+
+// Bytes placed in the code section that are never executed, for tables the
+// runtime reads
+public class Data extends Instruction {
+	public Data(byte[] bytes) {
+		x64.writeBytes(immBytes, bytes);
+	}
+}
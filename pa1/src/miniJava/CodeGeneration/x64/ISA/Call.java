@@ -6,11 +6,13 @@ import miniJava.CodeGeneration.x64.x64;
 
 public class Call extends Instruction {
 	public Call(int offset) {
+		imm = (long)offset;
 		opcodeBytes.write(0xE8);
 		x64.writeInt(immBytes,offset);
 	}
 	
 	public Call(int curAddr, int destAddr) {
+		imm = (long)(destAddr - curAddr - 5);
 		opcodeBytes.write(0xE8);
 		x64.writeInt(immBytes, destAddr - curAddr - 5);
 	}
@@ -5,18 +5,26 @@ import miniJava.CodeGeneration.x64.Instruction;
 import miniJava.CodeGeneration.x64.x64;
 
 public class CondJmp extends Instruction {
+	public final Condition cond;
+	
 	public CondJmp(Condition cond, byte rel8) {
+		this.cond = cond;
+		imm = (long)rel8;
 		opcodeBytes.write(getImm32Opcode(cond) - 0x10);
 		immBytes.write(rel8);
 	}
 	
 	public CondJmp(Condition cond, int rel32) {
+		this.cond = cond;
+		imm = (long)rel32;
 		opcodeBytes.write(0x0F);
 		opcodeBytes.write(getImm32Opcode(cond));
 		x64.writeInt(immBytes,rel32);
 	}
 	
 	public CondJmp(Condition cond, int curAddr, int destAddr, boolean asByte) {
+		this.cond = cond;
+		imm = (long)(destAddr - curAddr - (asByte ? 2 : 6));
 		if( asByte ) {
 			opcodeBytes.write( getImm32Opcode(cond) - 0x10 );
 			immBytes.write( destAddr - curAddr - 2 );
@@ -0,0 +1,11 @@
+package miniJava.CodeGeneration.x64.ISA;
+
+import miniJava.CodeGeneration.x64.Instruction;
+
+public class Cqo extends Instruction {
+	// sign extend RAX into RDX:RAX, needed before idiv
+	public Cqo() {
+		rexW = true;
+		opcodeBytes.write(0x99);
+	}
+}
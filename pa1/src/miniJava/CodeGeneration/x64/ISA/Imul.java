@@ -27,6 +27,7 @@ public class Imul extends Instruction {
 	
 	// imul r,rm,imm, where r:= rm * imm
 	public Imul(Reg r, ModRMSIB rm, int imm) {
+		this.imm = (long)imm;
 		rm.SetRegR(r);
 		byte[] rmsib = rm.getBytes();
 		importREX(rm);
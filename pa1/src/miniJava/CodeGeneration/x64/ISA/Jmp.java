@@ -17,18 +17,21 @@ public class Jmp extends Instruction {
 	
 	// jmp imm32 (offset from next instruction)
 	public Jmp(int offset) {
+		imm = (long)offset;
 		opcodeBytes.write(0xE9);
 		x64.writeInt(immBytes,offset);
 	}
 	
 	// jmp imm8 (offset from next instruction)
 	public Jmp(byte offset) {
+		imm = (long)offset;
 		opcodeBytes.write(0xEB);
 		immBytes.write(offset);
 	}
 	
 	// jmp imm8/32 (offset calculated)
 	public Jmp(int curAddr, int destAddr, boolean asByte) {
+		imm = (long)(destAddr - curAddr - (asByte ? 2 : 5));
 		if( asByte ) {
 			opcodeBytes.write(0xEB);
 			immBytes.write( destAddr - curAddr - 2 );
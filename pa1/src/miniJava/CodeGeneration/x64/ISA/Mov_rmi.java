@@ -7,6 +7,7 @@ import miniJava.CodeGeneration.x64.x64;
 public class Mov_rmi extends Instruction {
 	// rm,imm32 variants
 	public Mov_rmi(ModRMSIB modrmsib, int imm) {
+		this.imm = (long)imm;
 		modrmsib.SetRegR(x64.mod543ToReg(0));
 		byte[] modrmsibBytes = modrmsib.getBytes();
 		importREX(modrmsib);
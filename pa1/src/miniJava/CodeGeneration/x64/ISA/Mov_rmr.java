@@ -9,7 +9,7 @@ public class Mov_rmr extends Instruction {
 	public Mov_rmr(ModRMSIB modrmsib) {
 		byte[] modrmsibBytes = modrmsib.getBytes();
 		importREX(modrmsib);
-		opcodeBytes.write(0x89);
+		opcodeBytes.write(modrmsib.IsRegR_R8() ? 0x88 : 0x89);
 		x64.writeBytes(immBytes,modrmsibBytes);
 	}
 }
@@ -9,7 +9,7 @@ public class Mov_rrm extends Instruction {
 	public Mov_rrm(ModRMSIB modrmsib) {
 		byte[] modrmsibBytes = modrmsib.getBytes();
 		importREX(modrmsib);
-		opcodeBytes.write(0x8B);
+		opcodeBytes.write(modrmsib.IsRegR_R8() ? 0x8A : 0x8B);
 		x64.writeBytes(immBytes,modrmsibBytes);
 	}
 }
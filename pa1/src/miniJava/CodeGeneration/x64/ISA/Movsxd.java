@@ -0,0 +1,15 @@
+package miniJava.CodeGeneration.x64.ISA;
+
+import miniJava.CodeGeneration.x64.Instruction;
+import miniJava.CodeGeneration.x64.ModRMSIB;
+import miniJava.CodeGeneration.x64.x64;
+
+public class Movsxd extends Instruction {
+	// movsxd r64,rm32: sign extend the low 32 bits of rm into r
+	public Movsxd(ModRMSIB modrmsib) {
+		byte[] modrmsibBytes = modrmsib.getBytes();
+		importREX(modrmsib);
+		opcodeBytes.write(0x63);
+		x64.writeBytes(immBytes,modrmsibBytes);
+	}
+}
@@ -0,0 +1,16 @@
+package miniJava.CodeGeneration.x64.ISA;
+
+import miniJava.CodeGeneration.x64.Instruction;
+import miniJava.CodeGeneration.x64.ModRMSIB;
+import miniJava.CodeGeneration.x64.x64;
+
+public class Movzx extends Instruction {
+	// movzx r64,rm8: zero extend the byte at rm into r
+	public Movzx(ModRMSIB modrmsib) {
+		byte[] modrmsibBytes = modrmsib.getBytes();
+		importREX(modrmsib);
+		opcodeBytes.write(0x0F);
+		opcodeBytes.write(0xB6);
+		x64.writeBytes(immBytes,modrmsibBytes);
+	}
+}
@@ -7,6 +7,7 @@ import miniJava.CodeGeneration.x64.x64;
 
 public class Pop extends Instruction {
 	public Pop(Reg64 r) {
+		operands = new ModRMSIB(r, true);
 		// TODO: first, check if the Reg64 is R8-R15, if it is, set one of rexB,rexW,rexR,rexX to true (which one?)
 		// TODO: second, find the opcode for pop r, where r is a plain 64-bit register
 		// NOTE: x64.getIdx(r) will return a 0-7 index, whereas r.getIdx() returns an index from 0-15
@@ -9,10 +9,12 @@ public class Push extends Instruction {
 	public Push(int imm) {
 		// TODO: how can we do a push imm32?
 		opcodeBytes.write(0x68);
+		this.imm = (long)imm;
 		x64.writeInt(immBytes, imm);
 	}
 	
 	public Push(Reg64 reg) {
+		operands = new ModRMSIB(reg, true);
 		// no need to set rexW, push is always r64 (cannot access ecx/r9d)
 		if( reg.getIdx() > 7 )
 			rexB = true;
@@ -0,0 +1,18 @@
+package miniJava.CodeGeneration.x64.ISA;
+
+import miniJava.CodeGeneration.x64.Instruction;
+import miniJava.CodeGeneration.x64.ModRMSIB;
+import miniJava.CodeGeneration.x64.x64;
+
+public class Shr extends Instruction {
+	// shr rm,imm8 (logical, zeroes the top bits)
+	public Shr(ModRMSIB modrmsib, int imm8) {
+		imm = (long)imm8;
+		opcodeBytes.write(0xC1);
+		modrmsib.SetRegR(x64.mod543ToReg(5));
+		byte[] rmsib = modrmsib.getBytes();
+		importREX(modrmsib);
+		x64.writeBytes(immBytes,rmsib);
+		immBytes.write(imm8);
+	}
+}
@@ -23,6 +23,7 @@ public abstract class SimpleMathInstruction extends Instruction {
 	// do we have an immediate afterwards?
 	public SimpleMathInstruction(ModRMSIB modrmsib, int imm) {
 		//rexW = true;
+		this.imm = (long)imm;
 		modrmsib.SetRegR(x64.mod543ToReg(_thisOp().idx));
 		byte[] modrmsibBytes = modrmsib.getBytes();
 		importREX(modrmsib);
@@ -11,6 +11,11 @@ public abstract class Instruction {
 	protected boolean rexB = false;
 	public int startAddress;
 	public int listIdx;
+	
+	// operands the instruction was built from, kept for passes that rewrite
+	// code after it has been generated (imm is the rel offset for branches)
+	public ModRMSIB operands = null;
+	public Long imm = null;
 	private int _size = -1;
 	
 	// caching could be done better here, instructions are "kinda" immutable
@@ -41,6 +46,7 @@ public abstract class Instruction {
 	}
 	
 	protected void importREX(ModRMSIB rm64) {
+		operands = rm64;
 		rexW = rexW || rm64.getRexW();
 		rexR = rexR || rm64.getRexR();
 		rexX = rexX || rm64.getRexX();
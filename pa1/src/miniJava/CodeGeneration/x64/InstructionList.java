@@ -1,8 +1,15 @@
 package miniJava.CodeGeneration.x64;
 
 import java.util.List;
+import java.util.Map;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import miniJava.CodeGeneration.x64.ISA.Call;
+import miniJava.CodeGeneration.x64.ISA.CondJmp;
+import miniJava.CodeGeneration.x64.ISA.Jmp;
 
 public class InstructionList {
 	private List<Instruction> _instructions = new ArrayList<Instruction>();
@@ -10,6 +17,11 @@ public class InstructionList {
 	private int _currentIdx = 0;
 	private int _markStart = -1;
 	
+	// jumps and calls that were added against a label, and the labels that
+	// get attached to the next instruction added
+	private Map<Instruction,Label> _branchLabels = new IdentityHashMap<Instruction,Label>();
+	private List<Label> _pendingLabels = new ArrayList<Label>();
+	
 	public int getSize() {
 		return _currentSize;
 	}
@@ -18,15 +30,175 @@ public class InstructionList {
 		ins.startAddress = _currentSize;
 		ins.listIdx = _currentIdx;
 		_instructions.add(ins);
+		for( Label l : _pendingLabels )
+			l.target = ins;
+		_pendingLabels.clear();
 		_currentIdx++;
 		_currentSize += ins.size();
 		return ins.listIdx;
 	}
 	
+	// ins is a placeholder Jmp, CondJmp or Call, its offset is filled in by
+	// relax once the code is laid out
+	public int add(Instruction ins, Label target) {
+		_branchLabels.put(ins, target);
+		return add(ins);
+	}
+	
+	// Puts ins in front of the instruction at idx. Branches to that
+	// instruction still land on it and skip ins. Only branches added against
+	// a label may cross idx, the offsets of the others are not adjusted.
+	public void insert(int idx, Instruction ins) {
+		if( idx == _currentIdx ) {
+			add(ins);
+			return;
+		}
+		
+		_instructions.add(idx, ins);
+		_currentIdx++;
+		_currentSize += ins.size();
+		
+		int address = idx == 0 ? 0 : _instructions.get(idx - 1).startAddress + _instructions.get(idx - 1).size();
+		for( int i = idx; i < _instructions.size(); ++i ) {
+			Instruction moved = _instructions.get(i);
+			moved.startAddress = address;
+			moved.listIdx = i;
+			address += moved.size();
+		}
+	}
+	
+	public void bind(Label l) {
+		if( l.bound )
+			throw new IllegalStateException("Label is already bound");
+		l.bound = true;
+		_pendingLabels.add(l);
+	}
+	
 	public Instruction get(int idx) {
 		return _instructions.get(idx);
 	}
 	
+	public int getCount() {
+		return _currentIdx;
+	}
+	
+	public static boolean isRelative(Instruction ins) {
+		return (ins instanceof Call || ins instanceof Jmp || ins instanceof CondJmp) && ins.operands == null;
+	}
+	
+	// Every relative jump and call mapped to the instruction it lands on,
+	// null when that is the end of the code. Branches added without a label
+	// are resolved from the offset they were encoded with.
+	public Map<Instruction,Instruction> getBranchTargets() {
+		Map<Integer,Instruction> byAddress = new HashMap<Integer,Instruction>();
+		for( Instruction ins : _instructions )
+			byAddress.put(ins.startAddress, ins);
+		
+		Map<Instruction,Instruction> targets = new IdentityHashMap<Instruction,Instruction>();
+		for( Instruction ins : _instructions ) {
+			if( !isRelative(ins) ) continue;
+			
+			Label l = _branchLabels.get(ins);
+			if( l == null )
+				targets.put(ins, byAddress.get( (int)(ins.startAddress + ins.size() + ins.imm) ));
+			else if( !l.bound )
+				throw new IllegalStateException("Branch to a label that was never bound");
+			else
+				targets.put(ins, l.target);
+		}
+		return targets;
+	}
+	
+	// Swaps in a rewritten list, branches land on the instructions in
+	// targets. Offsets are only correct again after relax.
+	public void replaceAll(List<Instruction> instructions, Map<Instruction,Instruction> targets) {
+		_instructions = new ArrayList<Instruction>();
+		_branchLabels = new IdentityHashMap<Instruction,Label>();
+		_pendingLabels.clear();
+		_currentSize = 0;
+		_currentIdx = 0;
+		_markStart = -1;
+		
+		for( Instruction ins : instructions ) {
+			add(ins);
+			if( targets.containsKey(ins) ) {
+				Label l = new Label();
+				l.bound = true;
+				l.target = targets.get(ins);
+				_branchLabels.put(ins, l);
+			}
+		}
+	}
+	
+	// Lays the code out for good with every jump as short as its target
+	// allows. All jumps start out as rel8 and the ones that cannot reach are
+	// widened to rel32, which only moves other targets further apart, so this
+	// repeats until nothing needs widening. Calls are always rel32.
+	public void relax() {
+		Map<Instruction,Instruction> targets = getBranchTargets();
+		Map<Instruction,Integer> index = new IdentityHashMap<Instruction,Integer>();
+		int n = _instructions.size();
+		for( int i = 0; i < n; ++i )
+			index.put(_instructions.get(i), i);
+		
+		int[] size = new int[n];
+		int[] target = new int[n];
+		boolean[] wide = new boolean[n];
+		for( int i = 0; i < n; ++i ) {
+			Instruction ins = _instructions.get(i);
+			target[i] = -1;
+			size[i] = ins.size();
+			if( !isRelative(ins) ) continue;
+			
+			Instruction t = targets.get(ins);
+			target[i] = t == null ? n : index.get(t);
+			wide[i] = ins instanceof Call;
+			size[i] = wide[i] ? 5 : 2;
+		}
+		
+		int[] address = new int[n + 1];
+		boolean changed = true;
+		while( changed ) {
+			changed = false;
+			for( int i = 0; i < n; ++i )
+				address[i + 1] = address[i] + size[i];
+			
+			for( int i = 0; i < n; ++i ) {
+				if( target[i] < 0 || wide[i] ) continue;
+				if( x64.isOneByte(address[target[i]] - address[i + 1]) ) continue;
+				
+				wide[i] = true;
+				size[i] = _instructions.get(i) instanceof Jmp ? 5 : 6;
+				changed = true;
+			}
+		}
+		
+		Instruction[] laidOut = new Instruction[n];
+		for( int i = 0; i < n; ++i ) {
+			Instruction ins = _instructions.get(i);
+			int dest = address[target[i] < 0 ? 0 : target[i]];
+			if( target[i] < 0 )
+				laidOut[i] = ins;
+			else if( ins instanceof Call )
+				laidOut[i] = new Call(address[i], dest);
+			else if( ins instanceof Jmp )
+				laidOut[i] = new Jmp(address[i], dest, !wide[i]);
+			else
+				laidOut[i] = new CondJmp(((CondJmp)ins).cond, address[i], dest, !wide[i]);
+		}
+		
+		Map<Instruction,Instruction> laidOutTargets = new IdentityHashMap<Instruction,Instruction>();
+		for( int i = 0; i < n; ++i ) {
+			if( target[i] >= 0 )
+				laidOutTargets.put(laidOut[i], target[i] == n ? null : laidOut[target[i]]);
+		}
+		
+		List<Instruction> code = new ArrayList<Instruction>();
+		for( Instruction ins : laidOut )
+			code.add(ins);
+		replaceAll(code, laidOutTargets);
+	}
+	
 	public void markOutputStart() {
 		_markStart = _currentIdx;
 	}
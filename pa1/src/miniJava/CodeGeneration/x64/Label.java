@@ -0,0 +1,14 @@
+package miniJava.CodeGeneration.x64;
+
+// A place in an InstructionList that jumps and calls can be added against
+// before the code there exists. Binding the label attaches it to the next
+// instruction that gets added, a label bound after the last instruction
+// stands for the end of the code.
+public class Label {
+	Instruction target = null;
+	boolean bound = false;
+
+	public boolean isBound() {
+		return bound;
+	}
+}
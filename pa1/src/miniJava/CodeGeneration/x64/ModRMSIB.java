@@ -65,6 +65,14 @@ public class ModRMSIB {
 		SetMult(mult);
 	}
 	
+	// [ridx*mult+disp],r
+	public ModRMSIB(Reg64 ridx, int mult, int disp, Reg r) {
+		SetRegR(r);
+		SetRegIdx(ridx);
+		SetDisp(disp);
+		SetMult(mult);
+	}
+	
 	// [rdisp+disp],r
 	public ModRMSIB(Reg64 rdisp, int disp, Reg r) {
 		SetRegDisp(rdisp);
@@ -93,6 +101,30 @@ public class ModRMSIB {
 			SetRegR(r_or_rm);
 	}
 	
+	public Reg getRegR() {
+		return r;
+	}
+	
+	public Reg getRegRM() {
+		return rm;
+	}
+	
+	public Reg64 getRegDisp() {
+		return rdisp;
+	}
+	
+	public Reg64 getRegIdx() {
+		return ridx;
+	}
+	
+	public int getDisp() {
+		return disp;
+	}
+	
+	public int getMult() {
+		return mult;
+	}
+	
 	public int getRMSize() {
 		if( rm == null ) return 0;
 		return rm.size();
@@ -159,12 +191,19 @@ public class ModRMSIB {
 	private void Make(Reg64 rdisp, int disp, Reg r) {
 		// TODO: construct the byte and write to _b
 		// Operands: [rdisp+disp],r
+		if (rdisp == Reg64.RIP) {
+			// mod=00 with rm=101 means [rip+disp32]
+			_b.write((getIdx(r) << 3) | 5);
+			x64.writeInt(_b, disp);
+			return;
+		}
+
 		int mod = 2;
 
 		int regByte = (mod << 6) | (getIdx(r) << 3) | getIdx(rdisp);
 		_b.write(regByte);
 
-		if (rdisp == Reg64.RSP) {
+		if (getIdx(rdisp) == 4) { // rsp and r12 can only be a base through a SIB byte
 			int doubler = ((0 << 6) | (getIdx(rdisp) << 3) | getIdx(rdisp));
 			_b.write(doubler);
 		}
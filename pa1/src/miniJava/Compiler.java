@@ -12,10 +12,11 @@ public class Compiler {
 	// Main function, the file to compile will be an argument.
 	public static void main(String[] args) throws FileNotFoundException {
 		ErrorReporter _errorReporter = new ErrorReporter();
+		Interner _interner = new Interner();
 
 		FileInputStream _fileInputStream = new FileInputStream(args[0]);
 		
-		Scanner _Scanner = new Scanner(_fileInputStream, _errorReporter);
+		Scanner _Scanner = new Scanner(_fileInputStream, _errorReporter, _interner);
 		
 		Parser _parser = new Parser(_Scanner, _errorReporter);
 		
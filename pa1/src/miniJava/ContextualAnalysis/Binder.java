@@ -0,0 +1,416 @@
+package miniJava.ContextualAnalysis;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import miniJava.AbstractSyntaxTrees.*;
+import miniJava.AbstractSyntaxTrees.Package;
+import miniJava.SyntacticAnalyzer.Token;
+import miniJava.SyntacticAnalyzer.TokenType;
+
+// Runs after the program has been checked and stores on every Identifier the
+// Declaration it names, the kind of that declaration and the offset it lives
+// at, so code generation reads a name's storage instead of looking it up.
+// Names that do not resolve are left unbound.
+public class Binder implements Visitor<Object, Object> {
+    private Map<String, ClassDecl> classes = new HashMap<>();
+    private Map<String, MemberTable> members = new HashMap<>();
+
+    // Instance fields are packed by size. Running the compiler with
+    // -DminiJava.wideFields gives each one an 8 byte slot instead, array
+    // elements stay packed either way.
+    private static final boolean PACK_FIELDS = System.getProperty("miniJava.wideFields") == null;
+
+    // How many arguments, the receiver of an instance method included, the
+    // code generator passes in registers
+    private static final int ARGUMENT_REGISTERS = 6;
+
+    private ClassDecl currentClass = null;
+    private ScopedTable locals;
+    // Bytes of slots in use, and the most the current method ever needs
+    private int frameSize = 0;
+    private int maxFrameSize = 0;
+
+    public void parse(Package prog) {
+        prog.visit(this, null);
+    }
+
+    // owner is the class a member was found in
+    private void bind(Identifier id, Declaration decl, ClassDecl owner) {
+        id.decl = decl;
+
+        if (decl == null) {
+            return;
+        }
+
+        if (decl instanceof LocalDecl) {
+            id.declKind = DeclKind.LOCAL;
+        } else if (decl instanceof MethodDecl) {
+            id.declKind = DeclKind.METHOD;
+        } else if (decl instanceof ClassDecl) {
+            id.declKind = DeclKind.CLASS;
+        } else if (((FieldDecl) decl).isStatic) {
+            id.declKind = DeclKind.STATIC;
+        } else {
+            id.declKind = DeclKind.FIELD;
+        }
+
+        id.size = 8;
+        if (decl instanceof FieldDecl) {
+            id.offset = owner.layout.offsetOf((FieldDecl) decl);
+            id.size = owner.layout.sizeOf((FieldDecl) decl);
+        } else if (decl instanceof LocalDecl) {
+            id.offset = ((LocalDecl) decl).offset;
+        }
+    }
+
+    // The class whose members a reference to decl can be qualified with
+    private ClassDecl scopeOf(Declaration decl) {
+        if (decl instanceof ClassDecl) {
+            return (ClassDecl) decl;
+        }
+
+        if (decl == null || decl.type == null || decl.type.typeKind != TypeKind.CLASS) {
+            return null;
+        }
+
+        return classes.get(((ClassType) decl.type).className.spelling);
+    }
+
+    // Locals declared inside s only live until s ends, their slots are reused
+    private void visitScoped(Statement s) {
+        int scope = this.frameSize;
+
+        locals.openScope();
+        s.visit(this, null);
+        locals.closeScope();
+
+        this.frameSize = scope;
+    }
+
+    @Override
+    public Object visitPackage(Package prog, Object arg) {
+        // System Class Decl
+        FieldDecl outDecl = new FieldDecl(false, true,
+                new ClassType(new Identifier(new Token(TokenType.Identifier, "_PrintStream", null)), null), "out", null,
+                "_PrintStream");
+        FieldDeclList systemFieldDeclList = new FieldDeclList();
+        systemFieldDeclList.add(outDecl);
+        prog.classDeclList.add(new ClassDecl("System", systemFieldDeclList, new MethodDeclList(), null));
+
+        // _PrintStream Class Decl
+        FieldDecl printlnFieldDecl = new FieldDecl(false, false, new BaseType(TypeKind.VOID, null), "println", null,
+                "_PrintStream");
+        ParameterDeclList printlnParameterDeclList = new ParameterDeclList();
+        printlnParameterDeclList.add(new ParameterDecl(new BaseType(TypeKind.INT, null), "n", null));
+        MethodDeclList printStreamMethodDeclList = new MethodDeclList();
+        printStreamMethodDeclList.add(new MethodDecl(printlnFieldDecl, printlnParameterDeclList,
+                new StatementList(), null));
+        prog.classDeclList.add(new ClassDecl("_PrintStream", new FieldDeclList(), printStreamMethodDeclList, null));
+
+        // String Class Decl
+        prog.classDeclList.add(new ClassDecl("String", new FieldDeclList(), new MethodDeclList(), null));
+
+        // Static fields of each class follow those of the classes before it
+        int staticBase = 0;
+
+        for (ClassDecl c : prog.classDeclList) {
+            MemberTable table = new MemberTable();
+
+            c.layout = new ClassLayout(c, staticBase, PACK_FIELDS);
+            staticBase -= c.layout.staticSize;
+
+            for (FieldDecl f : c.fieldDeclList) {
+                table.add(f, f.isPrivate, f.isStatic);
+            }
+
+            for (MethodDecl m : c.methodDeclList) {
+                table.add(m, m.isPrivate, m.isStatic);
+            }
+
+            classes.put(c.name, c);
+            members.put(c.name, table);
+        }
+
+        for (ClassDecl c : prog.classDeclList) {
+            this.currentClass = c;
+            c.visit(this, null);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Object visitClassDecl(ClassDecl cd, Object arg) {
+        for (FieldDecl f : cd.fieldDeclList) {
+            f.visit(this, null);
+        }
+
+        for (MethodDecl m : cd.methodDeclList) {
+            m.visit(this, null);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Object visitFieldDecl(FieldDecl fd, Object arg) {
+        fd.type.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitMethodDecl(MethodDecl md, Object arg) {
+        this.locals = new ScopedTable();
+        // The receiver of an instance method is kept in the first slot
+        this.frameSize = md.isStatic ? 0 : 8;
+
+        md.type.visit(this, null);
+
+        // Parameters passed in registers are stored to slots like variables,
+        // the rest sit above the return address at negative offsets
+        int n = md.parameterDeclList.size();
+        int inRegisters = Math.min(n, ARGUMENT_REGISTERS - (md.isStatic ? 0 : 1));
+        for (int i = 0; i < n; i++) {
+            ParameterDecl pd = md.parameterDeclList.get(i);
+
+            if (i < inRegisters) {
+                this.frameSize += 8;
+                pd.offset = this.frameSize;
+            } else {
+                pd.offset = -(16 + 8 * (n - 1 - i));
+            }
+            pd.visit(this, null);
+        }
+        this.maxFrameSize = this.frameSize;
+
+        for (Statement s : md.statementList) {
+            s.visit(this, null);
+        }
+
+        md.frameSize = this.maxFrameSize;
+        return null;
+    }
+
+    @Override
+    public Object visitParameterDecl(ParameterDecl pd, Object arg) {
+        locals.add(pd);
+        pd.type.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitVarDecl(VarDecl decl, Object arg) {
+        this.frameSize += 8;
+        this.maxFrameSize = Math.max(this.maxFrameSize, this.frameSize);
+        decl.offset = this.frameSize;
+
+        locals.add(decl);
+        decl.type.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitBaseType(BaseType type, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitClassType(ClassType type, Object arg) {
+        bind(type.className, classes.get(type.className.spelling), null);
+        return null;
+    }
+
+    @Override
+    public Object visitArrayType(ArrayType type, Object arg) {
+        type.eltType.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitBlockStmt(BlockStmt stmt, Object arg) {
+        int scope = this.frameSize;
+
+        locals.openScope();
+        for (Statement s : stmt.sl) {
+            s.visit(this, null);
+        }
+        locals.closeScope();
+
+        this.frameSize = scope;
+        return null;
+    }
+
+    @Override
+    public Object visitVardeclStmt(VarDeclStmt stmt, Object arg) {
+        stmt.varDecl.visit(this, null);
+        stmt.initExp.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitAssignStmt(AssignStmt stmt, Object arg) {
+        stmt.ref.visit(this, null);
+        stmt.val.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitIxAssignStmt(IxAssignStmt stmt, Object arg) {
+        stmt.ref.visit(this, null);
+        stmt.ix.visit(this, null);
+        stmt.exp.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitCallStmt(CallStmt stmt, Object arg) {
+        stmt.methodRef.visit(this, null);
+        for (Expression e : stmt.argList) {
+            e.visit(this, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStmt(ReturnStmt stmt, Object arg) {
+        if (stmt.returnExpr != null) {
+            stmt.returnExpr.visit(this, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitIfStmt(IfStmt stmt, Object arg) {
+        stmt.cond.visit(this, null);
+        visitScoped(stmt.thenStmt);
+
+        if (stmt.elseStmt != null) {
+            visitScoped(stmt.elseStmt);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStmt(WhileStmt stmt, Object arg) {
+        stmt.cond.visit(this, null);
+        visitScoped(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr expr, Object arg) {
+        expr.expr.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr expr, Object arg) {
+        expr.left.visit(this, null);
+        expr.right.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitRefExpr(RefExpr expr, Object arg) {
+        expr.ref.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitIxExpr(IxExpr expr, Object arg) {
+        expr.ref.visit(this, null);
+        expr.ixExpr.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpr(CallExpr expr, Object arg) {
+        expr.functionRef.visit(this, null);
+        for (Expression e : expr.argList) {
+            e.visit(this, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpr(LiteralExpr expr, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitNewObjectExpr(NewObjectExpr expr, Object arg) {
+        expr.classtype.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitNewArrayExpr(NewArrayExpr expr, Object arg) {
+        expr.eltType.visit(this, null);
+        expr.sizeExpr.visit(this, null);
+        return null;
+    }
+
+    // References return the class their value can be qualified with, null
+    // when it has none
+
+    @Override
+    public Object visitThisRef(ThisRef ref, Object arg) {
+        return this.currentClass;
+    }
+
+    @Override
+    public Object visitIdRef(IdRef ref, Object arg) {
+        String name = ref.id.spelling;
+        Declaration decl = locals.get(name);
+
+        if (decl == null) {
+            decl = members.get(this.currentClass.name).get(name);
+        }
+
+        if (decl == null) {
+            decl = classes.get(name);
+        }
+
+        bind(ref.id, decl, this.currentClass);
+        return scopeOf(decl);
+    }
+
+    @Override
+    public Object visitQRef(QualRef ref, Object arg) {
+        ClassDecl qualifier = (ClassDecl) ref.ref.visit(this, null);
+        Declaration decl = null;
+
+        if (qualifier != null) {
+            decl = members.get(qualifier.name).get(ref.id.spelling);
+        }
+
+        bind(ref.id, decl, qualifier);
+        return scopeOf(decl);
+    }
+
+    @Override
+    public Object visitIdentifier(Identifier id, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitOperator(Operator op, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitIntLiteral(IntLiteral num, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitBooleanLiteral(BooleanLiteral bool, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitNullLiteral(NullLiteral bool, Object arg) {
+        return null;
+    }
+}
@@ -0,0 +1,93 @@
+package miniJava.ContextualAnalysis;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import miniJava.AbstractSyntaxTrees.*;
+
+// Where the fields of one class live, worked out once and shared by every
+// phase. Static fields take the next 8 byte slots below r15, starting at the
+// slot offset the layout was built with.
+//
+// Instance fields either all get an 8 byte slot, or are packed: an int takes
+// 4 bytes, a boolean 1 and a reference 8, and the fields are placed largest
+// first so none of them needs padding. Either way the references come first,
+// so the collector only needs to know how many there are. The instance size
+// is rounded up to 8 so the object after it stays aligned.
+public final class ClassLayout {
+    public final int instanceSize;
+    public final int staticSize;
+    public final int referenceCount;
+
+    private final Map<FieldDecl, Integer> offsets = new IdentityHashMap<>();
+    private final Map<FieldDecl, Integer> sizes = new IdentityHashMap<>();
+
+    public ClassLayout(ClassDecl cd, int staticBase, boolean packed) {
+        List<FieldDecl> instanceFields = new ArrayList<>();
+        int staticAddress = staticBase;
+
+        for (FieldDecl f : cd.fieldDeclList) {
+            if (f.isStatic) {
+                staticAddress -= 8;
+                offsets.put(f, staticAddress);
+                sizes.put(f, 8);
+            } else {
+                sizes.put(f, packed ? packedSize(f.type) : 8);
+                instanceFields.add(f);
+            }
+        }
+
+        // stable, so fields of one kind keep their declaration order
+        instanceFields.sort((a, b) -> rank(b) - rank(a));
+
+        int instanceSize = 0;
+        int referenceCount = 0;
+        for (FieldDecl f : instanceFields) {
+            offsets.put(f, instanceSize);
+            instanceSize += sizes.get(f);
+
+            if (isReference(f.type)) {
+                referenceCount++;
+            }
+        }
+
+        this.instanceSize = (instanceSize + 7) & ~7;
+        this.staticSize = staticBase - staticAddress;
+        this.referenceCount = referenceCount;
+    }
+
+    // References before anything else, then larger fields before smaller
+    private int rank(FieldDecl f) {
+        return isReference(f.type) ? 16 : sizes.get(f);
+    }
+
+    // Whether values of the type point into the heap
+    public static boolean isReference(TypeDenoter type) {
+        return type.typeKind == TypeKind.CLASS || type.typeKind == TypeKind.ARRAY;
+    }
+
+    // Bytes a value of this type takes once packed, array elements are
+    // stored the same way
+    public static int packedSize(TypeDenoter type) {
+        switch (type.typeKind) {
+            case INT:
+                return 4;
+            case BOOLEAN:
+                return 1;
+            default:
+                return 8;
+        }
+    }
+
+    // [object+offset] for an instance field, [r15+offset] for a static one
+    public int offsetOf(FieldDecl f) {
+        return offsets.get(f);
+    }
+
+    // How many bytes a load or store of f moves
+    public int sizeOf(FieldDecl f) {
+        return sizes.get(f);
+    }
+}
@@ -7,25 +7,31 @@ import miniJava.SyntacticAnalyzer.TokenType;
 import miniJava.AbstractSyntaxTrees.*;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 public class Identification implements Visitor<Object,Object> {
 	private ErrorReporter _errors;
 
-    private Map<String, Map<Declaration, Map<String, Declaration>>> IDTable = new HashMap<>();
-    private Map<Declaration, Map<String, Declaration>> memberDeclMap;
-    private Map<String, Declaration> localDeclMap;
-    private Map<Declaration, Map<String, Declaration>> helperMap;
+    // Members of every class, System, _PrintStream and String included
+    private Map<String, MemberTable> IDTable = new HashMap<>();
+    private MemberTable memberDeclMap;
+    private ScopedTable localDeclMap;
+    // every name the method declares in any of its scopes, the names it
+    // references are checked against these once the whole method is seen
+    private Set<String> declaredLocals;
+    private MemberTable helperMap;
     private String currClass = "";
     private MethodDecl currMethod = null;
     private String currVariable = null;
     
     private Stack<String> localAssigns;
-    private Map<String, Stack<Declaration>> privateValues = new HashMap<>();
-    private Stack<Declaration> privates;
-    private Map<String, Stack<Declaration>> staticValues = new HashMap<>();
-    private Stack<Declaration> Statics = new Stack<>();
+    // Whose private and static members apply to the reference being
+    // resolved, an empty table when none do
+    private MemberTable privates;
+    private MemberTable Statics = new MemberTable();
     private boolean isMethodStatic = false;
     private boolean isRefStatic = false;
     private boolean isLocal = false;
@@ -66,31 +72,21 @@ public class Identification implements Visitor<Object,Object> {
         Declaration _PrintStream = new FieldDecl(false, true,
                 new ClassType(new Identifier(new Token(TokenType.Identifier, "_PrintStream", null)), null), "out", null,
                 "_PrintStream");
-        this.memberDeclMap = new HashMap<>();
+        this.memberDeclMap = new MemberTable();
         this.IDTable.put("System", this.memberDeclMap);
-        this.memberDeclMap.put(_PrintStream, null);
-        this.privateValues.put("System", new Stack<>());
-        this.staticValues.put("System", new Stack<>());
-        this.staticValues.get("System").add(_PrintStream);
+        this.memberDeclMap.add(_PrintStream, false, true);
 
-        this.memberDeclMap = new HashMap<>();
-        this.localDeclMap = new HashMap<>();
+        this.memberDeclMap = new MemberTable();
         this.IDTable.put("_PrintStream", this.memberDeclMap);
-        this.localDeclMap.put("n", new VarDecl(new BaseType(TypeKind.INT, null), "n", null));
         ParameterDeclList temp = new ParameterDeclList();
         temp.add(new ParameterDecl(new BaseType(TypeKind.INT, null), "n", null));
-        this.memberDeclMap.put(new MethodDecl(new FieldDecl(false, false, new BaseType(TypeKind.VOID, null), "println", null), temp, new StatementList(), null), localDeclMap);
-        this.privateValues.put("_PrintStream", new Stack<>());
+        this.memberDeclMap.add(new MethodDecl(new FieldDecl(false, false, new BaseType(TypeKind.VOID, null), "println", null), temp, new StatementList(), null), false, false);
 
-        this.memberDeclMap = new HashMap<>();
-        this.localDeclMap = new HashMap<>();
+        this.memberDeclMap = new MemberTable();
         this.IDTable.put("String", this.memberDeclMap);
-        this.privateValues.put("String", new Stack<>());
 
         for (ClassDecl c : prog.classDeclList) {
-            this.memberDeclMap = new HashMap<>();
-            this.privateValues.put(c.name, new Stack<>());
-            this.staticValues.put(c.name, new Stack<>());
+            this.memberDeclMap = new MemberTable();
 
             if (IDTable.containsKey(c.name)) {
                 throw new IdentificationError(c, "Duplication Declaration of class " + c.name);
@@ -98,35 +94,15 @@ public class Identification implements Visitor<Object,Object> {
             IDTable.put(c.name, this.memberDeclMap);
 
             for (FieldDecl f : c.fieldDeclList) {
-                if (containsHelper(memberDeclMap, f.name) != null) {
+                if (!memberDeclMap.add(f, f.isPrivate, f.isStatic)) {
                     throw new IdentificationError(c, "Duplication Declaration of member " + f.name);
                 }
-                
-                if (f.isPrivate) {
-                    this.privateValues.get(c.name).add(f);
-                }
-
-                if (f.isStatic) {
-                    this.staticValues.get(c.name).add(f);
-                }
-
-                memberDeclMap.put(f, null);
             }
 
             for (MethodDecl m : c.methodDeclList) {
-                if (containsHelper(memberDeclMap, m.name) != null) {
+                if (!memberDeclMap.add(m, m.isPrivate, m.isStatic)) {
                     throw new IdentificationError(c, "Duplication Declaration of member " + m.name);
                 }
-
-                if (m.isPrivate) {
-                    this.privateValues.get(c.name).add(m);
-                }
-
-                if (m.isStatic) {
-                    this.staticValues.get(c.name).add(m);
-                }
-
-                memberDeclMap.put(m, null);
             }
         }
 
@@ -148,19 +124,18 @@ public class Identification implements Visitor<Object,Object> {
         }
 
         for (MethodDecl m : cd.methodDeclList) {
-            this.localDeclMap = new HashMap<>();
+            this.localDeclMap = new ScopedTable();
+            this.declaredLocals = new HashSet<>();
             this.localAssigns = new Stack<String>();
             this.currMethod = m;
             m.visit(this, pfx);
 
             while (!this.localAssigns.empty()) {
-                if (!this.localDeclMap.containsKey(this.localAssigns.peek()) && containsHelper(this.IDTable.get(cd.name), this.localAssigns.peek()) == null) {
+                if (!this.declaredLocals.contains(this.localAssigns.peek()) && this.IDTable.get(cd.name).get(this.localAssigns.peek()) == null) {
                     throw new IdentificationError(m, "Local variable " + this.localAssigns.peek() + " cannot be found");
                 }
                 this.localAssigns.pop();
             }
-
-            memberDeclMap.replace(m, localDeclMap);
         }
 
         return null;
@@ -196,13 +171,14 @@ public class Identification implements Visitor<Object,Object> {
 
     @Override
     public Object visitParameterDecl(ParameterDecl pd, Object arg) {
-        if (localDeclMap.containsKey(pd.name)) {
+        if (localDeclMap.contains(pd.name)) {
             throw new IdentificationError(pd, "Local variable " + pd.name + " declared multiple times");
         }
 
        pd.type.visit(this, indent((String) arg));
 
-        localDeclMap.put(pd.name, null);
+        localDeclMap.add(pd);
+        declaredLocals.add(pd.name);
 
         return null;
     }
@@ -242,11 +218,13 @@ public class Identification implements Visitor<Object,Object> {
         String pfx = arg + "  . ";
         Object temp = null;
 
+        localDeclMap.openScope();
         for (Statement s : sl) {
             if (s.visit(this, pfx) != null) {
                 temp = true;
             }
         }
+        localDeclMap.closeScope();
         return temp;
     }
 
@@ -254,11 +232,12 @@ public class Identification implements Visitor<Object,Object> {
     public Object visitVardeclStmt(VarDeclStmt stmt, Object arg) {
         String name = stmt.varDecl.name;
 
-        if (localDeclMap.containsKey(name)) {
+        if (localDeclMap.contains(name)) {
             throw new IdentificationError(stmt, "Local variable " + name + " declared multiple times");
         }
 
-        localDeclMap.put(name, stmt.varDecl);
+        localDeclMap.add(stmt.varDecl);
+        declaredLocals.add(name);
         this.currVariable = name;
         stmt.initExp.visit(this, indent((String) arg));
         this.currVariable = null;
@@ -416,8 +395,8 @@ public class Identification implements Visitor<Object,Object> {
             throw new IdentificationError(ref, "Cannot reference 'this' within a static context");
         }
         this.helperMap = IDTable.get(this.currClass);
-        this.privates = privateValues.get(this.currClass);
-        this.Statics = staticValues.get(this.currClass);
+        this.privates = this.helperMap;
+        this.Statics = this.helperMap;
 
         return this.helperMap;
     }
@@ -428,7 +407,7 @@ public class Identification implements Visitor<Object,Object> {
             throw new IdentificationError(ref, currVariable + " cannot be used to declare itself");
         }
 
-        Declaration temp = containsHelper(memberDeclMap, ref.id.spelling);
+        Declaration temp = memberDeclMap.get(ref.id.spelling);
         String rVal = "VarDecl";
 
         if (temp != null) {
@@ -446,22 +425,18 @@ public class Identification implements Visitor<Object,Object> {
         this.localAssigns.push(ref.id.spelling);
 
         
-        if (this.Statics == null || this.Statics.size() <= 0) {
-            this.Statics = this.staticValues.get(currClass);
-
-            for (Declaration d: this.Statics) {
-                if (d.name.equals(ref.id.spelling)) {
-                    this.isRefStatic = true;
+        if (this.Statics == null || !this.Statics.hasStatics()) {
+            if (this.memberDeclMap.isStatic(ref.id.spelling)) {
+                this.isRefStatic = true;
 
-                    if (localDeclMap.containsKey(ref.id.spelling)) {
-                        this.isLocal = true;
-                    }
+                if (localDeclMap.contains(ref.id.spelling)) {
+                    this.isLocal = true;
                 }
             }
 
-            this.Statics = new Stack<>();
+            this.Statics = new MemberTable();
 
-            if (!IDTable.containsKey(ref.id.spelling) && !localDeclMap.containsKey(ref.id.spelling)
+            if (!IDTable.containsKey(ref.id.spelling) && !localDeclMap.contains(ref.id.spelling)
                     && !this.isLocal && this.isMethodStatic && this.isMethodStatic != this.isRefStatic) {
                 throw new IdentificationError(ref, "Invalid mismatch between static and non static fields");
             }
@@ -480,24 +455,24 @@ public class Identification implements Visitor<Object,Object> {
         if (this.helperMap == null) {
             id = this.localAssigns.pop();
 
-            if (!IDTable.containsKey(id) && containsHelper(this.memberDeclMap, id) == null && !localDeclMap.containsKey(id)) {
+            if (!IDTable.containsKey(id) && this.memberDeclMap.get(id) == null && !localDeclMap.contains(id)) {
                 throw new IdentificationError(ref, "Invalid Identifier Found");
             }
 
             if (IDTable.containsKey(id)) {
                 this.helperMap = IDTable.get(id);
-                this.privates = privateValues.get(id);
-                this.Statics = staticValues.get(id);
+                this.privates = this.helperMap;
+                this.Statics = this.helperMap;
                 if (!id.equals(currClass)) {
                     isClass = true;
                 }
             } else {
                 try {
-                    if (localDeclMap.containsKey(id)) {
+                    if (localDeclMap.contains(id)) {
                         if (((VarDecl) localDeclMap.get(id)).type.typeKind == TypeKind.CLASS) {
                             this.helperMap = IDTable.get(((VarDecl) localDeclMap.get(id)).className);
-                            this.privates = new Stack<>();
-                            this.Statics = this.staticValues.get(((VarDecl) localDeclMap.get(id)).className);
+                            this.privates = new MemberTable();
+                            this.Statics = this.helperMap;
                             this.isLocal = true;
                         } else {
                             throw new IdentificationError(
@@ -505,79 +480,65 @@ public class Identification implements Visitor<Object,Object> {
                                             + " cannot be qualified");
                         }
 
-                    } else if (containsHelper(this.memberDeclMap, id) != null) {
-                        
-                        if (((FieldDecl) containsHelper(this.memberDeclMap, id)).type.typeKind == TypeKind.CLASS) {
-                            this.helperMap = IDTable
-                                    .get(((FieldDecl) containsHelper(this.memberDeclMap, id)).className);
-                            this.privates = new Stack<>();
-                            this.Statics = this.staticValues.get(((FieldDecl) containsHelper(this.memberDeclMap, id)).className);
-                            this.isRefStatic = false;
-                            for (Declaration d : this.Statics) {
-                                if (d.name.equals(ref.id.spelling)) {
-                                    this.isRefStatic = true;
-                                }
-                            }
+                    } else if (this.memberDeclMap.get(id) != null) {
+                        FieldDecl field = (FieldDecl) this.memberDeclMap.get(id);
+
+                        if (field.type.typeKind == TypeKind.CLASS) {
+                            this.helperMap = IDTable.get(field.className);
+                            this.privates = new MemberTable();
+                            this.Statics = this.helperMap;
+                            this.isRefStatic = this.Statics.isStatic(ref.id.spelling);
 
                             if (!isLocal && this.isMethodStatic && this.isMethodStatic != this.isRefStatic) {
                                 throw new IdentificationError(ref, 
                                         "Invalid mismatch between static and non static fields");
                             }
                         } else {
-                            throw new IdentificationError(ref, ((FieldDecl) containsHelper(this.memberDeclMap, id)).type.typeKind.toString() + " cannot be qualified");
+                            throw new IdentificationError(ref, field.type.typeKind.toString() + " cannot be qualified");
                         }
                     }
                 } catch (Exception e) {
-                    this.helperMap = new HashMap<>();
-                    this.privates = new Stack<>();
-                    this.Statics = new Stack<>();
+                    this.helperMap = new MemberTable();
+                    this.privates = new MemberTable();
+                    this.Statics = new MemberTable();
                 }
             }
         } 
         
-        if (containsHelper(helperMap, ref.id.spelling) == null) {
+        Declaration key = helperMap.get(ref.id.spelling);
+
+        if (key == null) {
             throw new IdentificationError(ref, "Invalid Identifier Found");
-        } else if (temp == null && this.privates.contains(containsHelper(helperMap, ref.id.spelling)) && !currClass.equals(id)) {
+        } else if (temp == null && this.privates.isPrivate(key) && !currClass.equals(id)) {
             throw new IdentificationError(ref, "Invalid Identifier Found");
-        } else {
-            for (Declaration key : this.helperMap.keySet()) {
-                if (key.name.equals(ref.id.spelling)) {
-                    try {
-                        if (privates.contains(key) && IDTable.get(currClass) != this.helperMap) {
-                            throw new IdentificationError(ref, "Private value referenced");
-                        }
+        }
 
-                        if (this.Statics != null && this.Statics.size() > 0) {
+        try {
+            if (privates.isPrivate(key) && IDTable.get(currClass) != this.helperMap) {
+                throw new IdentificationError(ref, "Private value referenced");
+            }
 
-                            for (Declaration d : this.Statics) {
-                                if (d.name.equals(ref.id.spelling)) {
-                                    this.isRefStatic = true;
-                                }
-                            }
-                        }
+            if (this.Statics != null && this.Statics.isStatic(ref.id.spelling)) {
+                this.isRefStatic = true;
+            }
 
-                        if (!isLocal && !isClass && this.isMethodStatic && this.isMethodStatic != this.isRefStatic) {
-                            throw new IdentificationError(ref,
-                                    "Invalid mismatch between static and non static fields");
-                        }
-                        if (isClass) {
-                            isLocal = true;
-                        }
+            if (!isLocal && !isClass && this.isMethodStatic && this.isMethodStatic != this.isRefStatic) {
+                throw new IdentificationError(ref,
+                        "Invalid mismatch between static and non static fields");
+            }
+            if (isClass) {
+                isLocal = true;
+            }
 
-                        this.helperMap = IDTable.get(((FieldDecl) key).className);
-                        privates = this.privateValues.get(((FieldDecl) key).className);
-                        this.Statics = this.staticValues.get(((FieldDecl) key).className);
+            this.helperMap = IDTable.get(((FieldDecl) key).className);
+            this.privates = this.helperMap;
+            this.Statics = this.helperMap;
 
-                        return key.toString();
-                    } catch (Exception e) {
-                        this.helperMap = new HashMap<>();
-                        return "MethodDecl";
-                    }
-                }
-            }
+            return key.toString();
+        } catch (Exception e) {
+            this.helperMap = new MemberTable();
+            return "MethodDecl";
         }
-
-        return null;
     }
 
     @Override
@@ -611,14 +572,4 @@ public class Identification implements Visitor<Object,Object> {
     private String indent(String prefix) {
         return prefix + "  ";
     }
-
-    private Declaration containsHelper(Map<Declaration, Map<String, Declaration>> temp, String searchKey) {
-        for (Declaration key : temp.keySet()) {
-            if (key.name.equals(searchKey)) {
-                return key;
-            }
-        }
-
-        return null;
-    }
 }
\ No newline at end of file
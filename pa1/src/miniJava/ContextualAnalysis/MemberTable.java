@@ -0,0 +1,63 @@
+package miniJava.ContextualAnalysis;
+
+import miniJava.AbstractSyntaxTrees.Declaration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The members of one class, indexed by name. Each member carries whether it
+// is private and whether it is static, so none of the lookups Identification
+// makes have to walk the class.
+class MemberTable {
+    private static class Member {
+        Declaration decl;
+        boolean isPrivate;
+        boolean isStatic;
+
+        Member(Declaration decl, boolean isPrivate, boolean isStatic) {
+            this.decl = decl;
+            this.isPrivate = isPrivate;
+            this.isStatic = isStatic;
+        }
+    }
+
+    private Map<String, Member> members = new HashMap<>();
+    private int staticCount = 0;
+
+    // Returns false, and leaves the table alone, if the class already has a
+    // member with that name
+    public boolean add(Declaration decl, boolean isPrivate, boolean isStatic) {
+        if (members.containsKey(decl.name)) {
+            return false;
+        }
+
+        members.put(decl.name, new Member(decl, isPrivate, isStatic));
+        if (isStatic) {
+            staticCount++;
+        }
+        return true;
+    }
+
+    public Declaration get(String name) {
+        Member m = members.get(name);
+        return m == null ? null : m.decl;
+    }
+
+    public boolean isPrivate(Declaration decl) {
+        if (decl == null) {
+            return false;
+        }
+
+        Member m = members.get(decl.name);
+        return m != null && m.decl == decl && m.isPrivate;
+    }
+
+    public boolean isStatic(String name) {
+        Member m = members.get(name);
+        return m != null && m.isStatic;
+    }
+
+    public boolean hasStatics() {
+        return staticCount > 0;
+    }
+}
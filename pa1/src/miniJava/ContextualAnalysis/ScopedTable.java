@@ -0,0 +1,60 @@
+package miniJava.ContextualAnalysis;
+
+import miniJava.AbstractSyntaxTrees.Declaration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+// Local declarations of the method being analysed. Every name maps to its
+// innermost declaration, which links to the one it hides. Each declaration
+// is also written to an undo log, so closing a scope only unwinds the names
+// that scope declared.
+class ScopedTable {
+    private static class Binding {
+        Declaration decl;
+        Binding hidden;
+
+        Binding(Declaration decl, Binding hidden) {
+            this.decl = decl;
+            this.hidden = hidden;
+        }
+    }
+
+    private Map<String, Binding> bindings = new HashMap<>();
+    private ArrayList<String> undoLog = new ArrayList<>();
+    private ArrayList<Integer> scopeStarts = new ArrayList<>();
+
+    public void openScope() {
+        scopeStarts.add(undoLog.size());
+    }
+
+    public void closeScope() {
+        int start = scopeStarts.remove(scopeStarts.size() - 1);
+
+        while (undoLog.size() > start) {
+            String name = undoLog.remove(undoLog.size() - 1);
+            Binding b = bindings.get(name);
+
+            if (b.hidden == null) {
+                bindings.remove(name);
+            } else {
+                bindings.put(name, b.hidden);
+            }
+        }
+    }
+
+    public void add(Declaration decl) {
+        bindings.put(decl.name, new Binding(decl, bindings.get(decl.name)));
+        undoLog.add(decl.name);
+    }
+
+    public Declaration get(String name) {
+        Binding b = bindings.get(name);
+        return b == null ? null : b.decl;
+    }
+
+    public boolean contains(String name) {
+        return bindings.containsKey(name);
+    }
+}
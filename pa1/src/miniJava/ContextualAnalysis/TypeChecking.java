@@ -2,23 +2,22 @@ package miniJava.ContextualAnalysis;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Stack;
 
 import miniJava.ErrorReporter;
 import miniJava.AbstractSyntaxTrees.*;
 import miniJava.AbstractSyntaxTrees.Package;
-import miniJava.SyntacticAnalyzer.Token;
 import miniJava.SyntacticAnalyzer.TokenType;
 
 public class TypeChecking implements Visitor<Object, TypeDenoter> {
     private ErrorReporter _errors;
 
-    private Map<String, Stack<Declaration>> IDTable = new HashMap<>();
-    private Stack<Declaration> localDeclMap;
+    private Map<String, MemberTable> IDTable = new HashMap<>();
+    private ScopedTable localDeclMap;
+    private TypeTable types = new TypeTable();
 
     private String currClass = "";
     private boolean qRefFlag = false;
-    private Stack<Declaration> helper = null;
+    private MemberTable helper = null;
     private Declaration methodCalls = null;
 
     public TypeChecking(ErrorReporter errors) {
@@ -29,6 +28,14 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
         prog.visit(this, null);
     }
 
+    // Types an expression once and keeps the result on the node
+    private TypeDenoter typeOf(Expression expr, Object arg) {
+        if (expr.type == null) {
+            expr.type = expr.visit(this, arg);
+        }
+        return expr.type;
+    }
+
     private void reportTypeError(AST ast, String errMsg) {
         _errors.reportError(ast.posn == null
                 ? "*** " + errMsg
@@ -37,25 +44,30 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
 
     @Override
     public TypeDenoter visitPackage(Package prog, Object arg) {        
-        this.IDTable.put("System", new Stack<>());
-        this.IDTable.get("System").push(new FieldDecl(false, true, new ClassType(new Identifier(new Token(TokenType.Identifier, "_PrintStream", null)), null), "out", null, "_PrintStream"));
+        this.IDTable.put("System", new MemberTable());
+        this.IDTable.get("System").add(new FieldDecl(false, true, types.classType("_PrintStream"), "out", null, "_PrintStream"), false, true);
 
-        this.IDTable.put("_PrintStream", new Stack<>());
+        this.IDTable.put("_PrintStream", new MemberTable());
         ParameterDeclList temp = new ParameterDeclList();
-        temp.add(new ParameterDecl(new BaseType(TypeKind.INT, null), "n", null));
-        this.IDTable.get("_PrintStream").push(new MethodDecl(new FieldDecl(false, false, new BaseType(TypeKind.VOID, null), "println", null), temp, new StatementList(), null));
+        temp.add(new ParameterDecl(types.base(TypeKind.INT), "n", null));
+        this.IDTable.get("_PrintStream").add(new MethodDecl(new FieldDecl(false, false, types.base(TypeKind.VOID), "println", null), temp, new StatementList(), null), false, false);
 
-        this.IDTable.put("String", new Stack<>());
+        this.IDTable.put("String", new MemberTable());
 
         for (ClassDecl c : prog.classDeclList) {
-            IDTable.put(c.name, new Stack<>());
+            IDTable.put(c.name, new MemberTable());
 
             for (FieldDecl f : c.fieldDeclList) {
-                IDTable.get(c.name).push(f);
+                f.type = types.canonical(f.type);
+                IDTable.get(c.name).add(f, f.isPrivate, f.isStatic);
             }
 
             for (MethodDecl m : c.methodDeclList) {
-                IDTable.get(c.name).push(m);
+                m.type = types.canonical(m.type);
+                for (ParameterDecl pd : m.parameterDeclList) {
+                    pd.type = types.canonical(pd.type);
+                }
+                IDTable.get(c.name).add(m, m.isPrivate, m.isStatic);
             }
         }
 
@@ -69,7 +81,7 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
     @Override
     public TypeDenoter visitClassDecl(ClassDecl cd, Object arg) {
         for (MethodDecl m : cd.methodDeclList) {
-            this.localDeclMap = new Stack<>();
+            this.localDeclMap = new ScopedTable();
             m.visit(this, arg);
         }
 
@@ -107,14 +119,15 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
 
     @Override
     public TypeDenoter visitParameterDecl(ParameterDecl pd, Object arg) {
-        localDeclMap.push(pd);
+        localDeclMap.add(pd);
 
         return pd.type;
     }
 
     @Override
     public TypeDenoter visitVarDecl(VarDecl decl, Object arg) {
-        localDeclMap.push(decl);
+        decl.type = types.canonical(decl.type);
+        localDeclMap.add(decl);
         return decl.type;
     }
 
@@ -133,11 +146,21 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
         return null;
     }
 
+    // Locals declared inside s only live until s ends
+    private TypeDenoter visitScoped(Statement s, Object arg) {
+        localDeclMap.openScope();
+        TypeDenoter temp = s.visit(this, arg);
+        localDeclMap.closeScope();
+
+        return temp;
+    }
+
     @Override
     public TypeDenoter visitBlockStmt(BlockStmt stmt, Object arg) {
         StatementList sl = stmt.sl;
         TypeDenoter temp = null;
 
+        localDeclMap.openScope();
         for (Statement s : sl) {
             if (temp == null) {
                 temp = s.visit(this, arg);
@@ -145,16 +168,15 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
                 s.visit(this, arg);
             }
         }
+        localDeclMap.closeScope();
 
         return temp;
     }
 
     @Override
     public TypeDenoter visitVardeclStmt(VarDeclStmt stmt, Object arg) {
-        localDeclMap.push(stmt.varDecl);
-
         TypeDenoter left = stmt.varDecl.visit(this, arg);
-        TypeDenoter right = stmt.initExp.visit(this, arg);
+        TypeDenoter right = typeOf(stmt.initExp, arg);
 
         if (right.typeKind == TypeKind.NULL) {
             return null;
@@ -165,20 +187,10 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
             return null;
         }
 
-        if (left.typeKind == TypeKind.CLASS && !stmt.varDecl.className.equals(((ClassType) right).className.spelling)) {
+        if (left != right) {
             reportTypeError(stmt, stmt.varDecl.name + " has an invalid assignment");
         }
 
-        if (left.typeKind == TypeKind.ARRAY) {
-            if (((ArrayType) left).eltType.typeKind != ((ArrayType) right).eltType.typeKind) {
-                reportTypeError(stmt, "Assignment statement has an invalid assignment");
-            } else if (((ArrayType) left).eltType.typeKind == TypeKind.CLASS
-                    && !((((ClassType) ((ArrayType) left).eltType).className.spelling)
-                            .equals(((ClassType) ((ArrayType) right).eltType).className.spelling))) {
-                reportTypeError(stmt, "Assignment statement has an invalid assignment");
-            }
-        }
-
         return null;
     }
 
@@ -188,7 +200,7 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
         TypeDenoter left = stmt.ref.visit(this, arg);
         this.helper = null;
 
-        TypeDenoter right = stmt.val.visit(this, arg);
+        TypeDenoter right = typeOf(stmt.val, arg);
 
         if (right.typeKind == TypeKind.NULL) {
             return null;
@@ -199,18 +211,10 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
             return null;
         }
 
-        if (left.typeKind == TypeKind.CLASS && !((((ClassType) left).className.spelling).equals(((ClassType) right).className.spelling))) {
+        if (left != right) {
             reportTypeError(stmt, "Assignment statement has an invalid assignment");
         }
 
-        if (left.typeKind == TypeKind.ARRAY) {
-            if (((ArrayType) left).eltType.typeKind != ((ArrayType) right).eltType.typeKind) {
-                reportTypeError(stmt, "Assignment statement has an invalid assignment");
-            } else if (((ArrayType) left).eltType.typeKind == TypeKind.CLASS && !((((ClassType) ((ArrayType) left).eltType).className.spelling).equals(((ClassType) ((ArrayType) right).eltType).className.spelling))) {
-                reportTypeError(stmt, "Assignment statement has an invalid assignment");
-            }
-        }
-        
         return null;
     }
 
@@ -220,25 +224,21 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
         TypeDenoter ref = stmt.ref.visit(this, arg);
         this.helper = null;
 
-        TypeDenoter exp1 = stmt.ix.visit(this, arg);
-        TypeDenoter exp2 = stmt.exp.visit(this, arg);
+        TypeDenoter exp1 = typeOf(stmt.ix, arg);
+        TypeDenoter exp2 = typeOf(stmt.exp, arg);
 
         if (exp2.typeKind == TypeKind.ARRAY) {
             exp2 = ((ArrayType) exp2).eltType;
         }
 
-        if (ref.typeKind != TypeKind.ARRAY) {
-            reportTypeError(stmt, "Reference is not an Array");
-        }
         if (exp1.typeKind != TypeKind.INT) {
             reportTypeError(stmt, "Expression has to be of type Integer");
         }
-        if (((ArrayType) ref).eltType.typeKind != exp2.typeKind) {
+        if (ref.typeKind != TypeKind.ARRAY) {
+            reportTypeError(stmt, "Reference is not an Array");
+        } else if (((ArrayType) ref).eltType != exp2) {
             reportTypeError(stmt, "Array Type does not match Assignment");
         }
-        if (ref.typeKind == TypeKind.CLASS && !(((ClassType) ref).className.spelling.equals(((ClassType) exp2).className.spelling))) {
-            reportTypeError(stmt, "Array Type does not match Assignment");
-        } 
         
         return null;
     }
@@ -258,26 +258,11 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
                 reportTypeError(method, "Call Expression does not contain Right number of Parameters");
             } else {
                 for (int i = 0; i < parameters.size(); i++) {
-                    TypeDenoter left = parameters.get(i).visit(this, arg);
-                    TypeDenoter right = stmt.argList.get(i).visit(this, arg);
+                    TypeDenoter left = parameters.get(i).type;
+                    TypeDenoter right = typeOf(stmt.argList.get(i), arg);
 
-                    if (left.typeKind != right.typeKind) {
-                        reportTypeError(right, "Call Expression does not have matching method");
-                    }
-
-                    if (left.typeKind == TypeKind.CLASS
-                            && !((ClassType) left).className.spelling.equals(((ClassType) right).className.spelling)) {
-                        reportTypeError(right, "Call Expression does not have matching method");
-                    }
-
-                    if (left.typeKind == TypeKind.ARRAY) {
-                        if (((ArrayType) left).eltType.typeKind != ((ArrayType) right).eltType.typeKind) {
-                            reportTypeError(right, "Call Expression does not have matching method");
-                        } else if (((ArrayType) left).eltType.typeKind == TypeKind.CLASS
-                                && !((((ClassType) ((ArrayType) left).eltType).className.spelling)
-                                        .equals(((ClassType) ((ArrayType) right).eltType).className.spelling))) {
-                            reportTypeError(right, "Call Expression does not have matching method");
-                        }
+                    if (left != right) {
+                        reportTypeError(stmt.argList.get(i), "Call Expression does not have matching method");
                     }
                 }
             }
@@ -289,26 +274,34 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
     @Override
     public TypeDenoter visitReturnStmt(ReturnStmt stmt, Object arg) {
         if (stmt.returnExpr != null) {
-            return stmt.returnExpr.visit(this, arg);
+            return typeOf(stmt.returnExpr, arg);
         }
 
-        return new BaseType(TypeKind.NULL, null);
+        return types.base(TypeKind.NULL);
     }
 
     @Override
     public TypeDenoter visitIfStmt(IfStmt stmt, Object arg) {
-        TypeDenoter condition = stmt.cond.visit(this, arg);
+        TypeDenoter condition = typeOf(stmt.cond, arg);
 
         if (condition.typeKind != TypeKind.BOOLEAN) {
             reportTypeError(stmt, "If statement condition is not a boolean");
         }
-        
-        return stmt.thenStmt.visit(this, arg);
+
+        TypeDenoter temp = visitScoped(stmt.thenStmt, arg);
+        if (stmt.elseStmt != null) {
+            TypeDenoter other = visitScoped(stmt.elseStmt, arg);
+            if (temp == null) {
+                temp = other;
+            }
+        }
+
+        return temp;
     }
 
     @Override
     public TypeDenoter visitWhileStmt(WhileStmt stmt, Object arg) {
-        TypeDenoter condition = stmt.cond.visit(this, arg);
+        TypeDenoter condition = typeOf(stmt.cond, arg);
 
         if (condition.typeKind != TypeKind.BOOLEAN) {
             reportTypeError(stmt, "While statement condition is not a boolean");
@@ -319,83 +312,63 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
 
     @Override
     public TypeDenoter visitUnaryExpr(UnaryExpr expr, Object arg) {
-        TypeDenoter exTypeDenoter = expr.expr.visit(this, arg);
+        TypeDenoter exTypeDenoter = typeOf(expr.expr, arg);
         this.helper = null;
 
         if (expr.operator.kind == TokenType.Minus) {
             if (exTypeDenoter.typeKind != TypeKind.INT) {
-                reportTypeError(exTypeDenoter, "Unary Expression needs a integer expression");
+                reportTypeError(expr, "Unary Expression needs a integer expression");
             }
-            return new BaseType(TypeKind.INT, null);
+            return types.base(TypeKind.INT);
         } else {
             if (exTypeDenoter.typeKind != TypeKind.BOOLEAN) {
-                reportTypeError(exTypeDenoter, "Unary Expression needs a integer expression");
+                reportTypeError(expr, "Unary Expression needs a integer expression");
             }
-            return new BaseType(TypeKind.BOOLEAN, null);
+            return types.base(TypeKind.BOOLEAN);
         }
     }
 
     @Override
     public TypeDenoter visitBinaryExpr(BinaryExpr expr, Object arg) {
-        TypeDenoter leftTypeDenoter = expr.left.visit(this, arg);
-        TypeDenoter righTypeDenoter = expr.right.visit(this, arg);
+        TypeDenoter leftTypeDenoter = typeOf(expr.left, arg);
+        TypeDenoter righTypeDenoter = typeOf(expr.right, arg);
 
         if (expr.operator.kind == TokenType.LogicalBiOperator) {
             if (leftTypeDenoter.typeKind == TypeKind.BOOLEAN && righTypeDenoter.typeKind == TypeKind.BOOLEAN) {
-                return new BaseType(TypeKind.BOOLEAN, null);
+                return types.base(TypeKind.BOOLEAN);
             } else {
                 reportTypeError(expr, "Left and Right Expressions have to both be boolean");
-                return new BaseType(TypeKind.UNSUPPORTED, null);
+                return types.base(TypeKind.UNSUPPORTED);
             }
         } else if (expr.operator.kind == TokenType.Equality || expr.operator.kind == TokenType.NotEquality) {
             if(leftTypeDenoter.typeKind == TypeKind.NULL || righTypeDenoter.typeKind == TypeKind.NULL) {
-                return new BaseType(TypeKind.BOOLEAN, null);
+                return types.base(TypeKind.BOOLEAN);
             } else if (leftTypeDenoter.typeKind == righTypeDenoter.typeKind) {
-                if (leftTypeDenoter.typeKind != TypeKind.CLASS && leftTypeDenoter.typeKind != TypeKind.ARRAY) {
-                    return new BaseType(TypeKind.BOOLEAN, null);
-                } else if (leftTypeDenoter.typeKind == TypeKind.CLASS) {
-                    if (((ClassType) leftTypeDenoter).className.equals(((ClassType) righTypeDenoter).className)) {
-                        return new BaseType(TypeKind.BOOLEAN, null);
-                    } else {
-                        return new BaseType(TypeKind.UNSUPPORTED, null);
-                    }
-                } else {
-                    if (((ArrayType) leftTypeDenoter).eltType.typeKind != TypeKind.CLASS) {
-                        if (((ArrayType) leftTypeDenoter).eltType.typeKind == ((ArrayType) righTypeDenoter).eltType.typeKind) {
-                            return new BaseType(TypeKind.BOOLEAN, null);
-                        }
-
-                        return new BaseType(TypeKind.UNSUPPORTED, null);
-                    } else if (((ArrayType) leftTypeDenoter).eltType.typeKind == TypeKind.CLASS) {
-                        if (((ClassType) ((ArrayType) leftTypeDenoter).eltType).className.equals(((ClassType) ((ArrayType) righTypeDenoter).eltType).className)) {
-                            return new BaseType(TypeKind.BOOLEAN, null);
-                        }
-
-                        return new BaseType(TypeKind.UNSUPPORTED, null);
-                    } else {
-                        return new BaseType(TypeKind.UNSUPPORTED, null);
-                    }
+                if (leftTypeDenoter == righTypeDenoter) {
+                    return types.base(TypeKind.BOOLEAN);
                 }
+
+                return types.base(TypeKind.UNSUPPORTED);
             } else {
                 reportTypeError(expr, "Left and Right Expressions have to both be the same when checking equality");
-                return new BaseType(TypeKind.UNSUPPORTED, null);
+                return types.base(TypeKind.UNSUPPORTED);
             }
         } else if (expr.operator.kind == TokenType.Comparator) {
             if (leftTypeDenoter.typeKind == TypeKind.INT && righTypeDenoter.typeKind == TypeKind.INT) {
-                return new BaseType(TypeKind.BOOLEAN, null);
+                return types.base(TypeKind.BOOLEAN);
             } else {
                 reportTypeError(expr, "Left and Right Expressions have to both be INT");
-                return new BaseType(TypeKind.UNSUPPORTED, null);
+                return types.base(TypeKind.UNSUPPORTED);
             }
         } else if (expr.operator.kind == TokenType.Operator || expr.operator.kind == TokenType.Minus) {
             if (leftTypeDenoter.typeKind == TypeKind.INT && righTypeDenoter.typeKind == TypeKind.INT) {
-                return new BaseType(TypeKind.INT, null);
+                return types.base(TypeKind.INT);
             } else {
                 reportTypeError(expr, "Left and Right Expressions have to both be INT");
-                return new BaseType(TypeKind.UNSUPPORTED, null);
+                return types.base(TypeKind.UNSUPPORTED);
             }
         } else {
-            return new BaseType(TypeKind.BOOLEAN, null);
+            return types.base(TypeKind.BOOLEAN);
         }
     }
 
@@ -414,16 +387,16 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
        TypeDenoter exp = expr.ref.visit(this, arg);
        this.helper = null;
 
-       TypeDenoter num = expr.ixExpr.visit(this, arg);
+       TypeDenoter num = typeOf(expr.ixExpr, arg);
 
         if (exp.typeKind != TypeKind.ARRAY) {
-            reportTypeError(num, "IX Expression reference must be an Array");
-             return new BaseType(TypeKind.UNSUPPORTED, null);
+            reportTypeError(expr, "IX Expression reference must be an Array");
+             return types.base(TypeKind.UNSUPPORTED);
         }
     
        if (num.typeKind != TypeKind.INT) {
-        reportTypeError(num, "IX Expressions must have a INT value for size");
-        return new BaseType(TypeKind.UNSUPPORTED, null);
+        reportTypeError(expr, "IX Expressions must have a INT value for size");
+        return types.base(TypeKind.UNSUPPORTED);
        }
 
        return ((ArrayType) exp).eltType;
@@ -442,26 +415,11 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
             reportTypeError(method, "Call Expression does not contain Right number of Parameters");
         } else {
             for (int i = 0; i < parameters.size(); i++) {
-                TypeDenoter left = parameters.get(i).visit(this, arg);
-                TypeDenoter right = expr.argList.get(i).visit(this, arg);
-
-                if (left.typeKind != right.typeKind) {
-                    reportTypeError(right, "Call Expression does not have matching method");
-                }
-
-                if (left.typeKind == TypeKind.CLASS
-                        && !((ClassType) left).className.spelling.equals(((ClassType) right).className.spelling)) {
-                    reportTypeError(right, "Call Expression does not have matching method");
-                }
+                TypeDenoter left = parameters.get(i).type;
+                TypeDenoter right = typeOf(expr.argList.get(i), arg);
 
-                if (left.typeKind == TypeKind.ARRAY) {
-                    if (((ArrayType) left).eltType.typeKind != ((ArrayType) right).eltType.typeKind) {
-                        reportTypeError(right, "Call Expression does not have matching method");
-                    } else if (((ArrayType) left).eltType.typeKind == TypeKind.CLASS
-                            && !((((ClassType) ((ArrayType) left).eltType).className.spelling)
-                                    .equals(((ClassType) ((ArrayType) right).eltType).className.spelling))) {
-                        reportTypeError(right, "Call Expression does not have matching method");
-                    }
+                if (left != right) {
+                    reportTypeError(expr.argList.get(i), "Call Expression does not have matching method");
                 }
             }
         }        
@@ -476,31 +434,31 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
 
     @Override
     public TypeDenoter visitNewObjectExpr(NewObjectExpr expr, Object arg) {
-       return expr.classtype;
+       return types.canonical(expr.classtype);
     }
 
     @Override
     public TypeDenoter visitNewArrayExpr(NewArrayExpr expr, Object arg) {
         TypeDenoter type = expr.eltType;
-        TypeDenoter sizeExpr = expr.sizeExpr.visit(this, arg);
+        TypeDenoter sizeExpr = typeOf(expr.sizeExpr, arg);
         
         if (sizeExpr.typeKind != TypeKind.INT) {
-            reportTypeError(sizeExpr, "Size Expression in new array Declaration has to be of type Int");
-            return new BaseType(TypeKind.UNSUPPORTED, null);
+            reportTypeError(expr, "Size Expression in new array Declaration has to be of type Int");
+            return types.base(TypeKind.UNSUPPORTED);
         }
         if (type.typeKind != TypeKind.INT && type.typeKind != TypeKind.CLASS) {
-            reportTypeError(sizeExpr, "Array type must be INT or CLASS");
-            return new BaseType(TypeKind.UNSUPPORTED, null);
+            reportTypeError(expr, "Array type must be INT or CLASS");
+            return types.base(TypeKind.UNSUPPORTED);
         }
 
-        return new ArrayType(type, null);
+        return types.arrayOf(type);
     }
 
     @Override
     public TypeDenoter visitThisRef(ThisRef ref, Object arg) {
         this.helper = IDTable.get(currClass);
 
-        return new ClassType(new Identifier(new Token(TokenType.Identifier, currClass, null)), null);
+        return types.classType(currClass);
     }
 
     @Override
@@ -510,95 +468,49 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
         if (this.helper == null) {
             if (this.qRefFlag && IDTable.containsKey(id)) {
                 this.helper = IDTable.get(id);
-                return new ClassType(ref.id, null);
+                return types.classType(id);
             } else {
-                for (Declaration d : localDeclMap) {
-                    if (d.name.equals(id)) {
-                        if (d.toString().equals("VarDecl")) {
-                            this.helper = IDTable.get(((VarDecl) d).className);
-                        } else {
-                            this.helper = IDTable.get(((ParameterDecl) d).className);
-                        }
-                        if (d.type.typeKind == TypeKind.INT || d.type.typeKind == TypeKind.BOOLEAN) {
-                            return new BaseType(d.type.typeKind, null);
-                        } else if (d.type.typeKind == TypeKind.CLASS) {
-                            return new ClassType(((ClassType) d.type).className, null);
-                        } else if (d.type.typeKind == TypeKind.ARRAY) {
-                            if (((ArrayType) (d.type)).eltType.typeKind == TypeKind.CLASS) {
-                                return new ArrayType(
-                                        new ClassType(((ClassType) ((ArrayType) d.type).eltType).className, null),
-                                        null);
-                            }
-                            return new ArrayType(new BaseType(((ArrayType) (d.type)).eltType.typeKind, null), null);
-                        } else {
-                            return new BaseType(TypeKind.UNSUPPORTED, null);
-                        }
+                Declaration d = localDeclMap.get(id);
+                if (d != null) {
+                    if (d.toString().equals("VarDecl")) {
+                        this.helper = IDTable.get(((VarDecl) d).className);
+                    } else {
+                        this.helper = IDTable.get(((ParameterDecl) d).className);
                     }
+                    return d.type;
                 }
 
-                for (Declaration d : IDTable.get(currClass)) {
-                    if (d.name.equals(id)) {
-                        if (d.toString().equals("FieldDecl")) {
-                            this.helper = IDTable.get(((FieldDecl) d).className);
-                        } else {
-                            this.methodCalls = d;
-                            this.helper = new Stack<>();
-                        }
-
-                        if (d.type.typeKind == TypeKind.INT || d.type.typeKind == TypeKind.BOOLEAN) {
-                            return new BaseType(d.type.typeKind, null);
-                        } else if (d.type.typeKind == TypeKind.CLASS) {
-                            return new ClassType(((ClassType) d.type).className, null);
-                        } else if (d.type.typeKind == TypeKind.ARRAY) {
-                            if (((ArrayType) (d.type)).eltType.typeKind == TypeKind.CLASS) {
-                                return new ArrayType(
-                                        new ClassType(((ClassType) ((ArrayType) d.type).eltType).className, null),
-                                        null);
-                            }
-                            return new ArrayType(new BaseType(((ArrayType) (d.type)).eltType.typeKind, null), null);
-                        } else if (d.type.typeKind == TypeKind.VOID) {
-                            return d.type;
-                        } else {
-                            return new BaseType(TypeKind.UNSUPPORTED, null);
-                        }
+                d = IDTable.get(currClass).get(id);
+                if (d != null) {
+                    if (d.toString().equals("FieldDecl")) {
+                        this.helper = IDTable.get(((FieldDecl) d).className);
+                    } else {
+                        this.methodCalls = d;
+                        this.helper = new MemberTable();
                     }
+
+                    return d.type;
                 }
             }
 
             reportTypeError(ref, "Variable Not Found");
-            return new BaseType(TypeKind.UNSUPPORTED, null);
+            return types.base(TypeKind.UNSUPPORTED);
         }
         
-        for (Declaration d : this.helper) {
-            if (d.name.equals(id)) {
-                if (d.toString().equals("FieldDecl")) {
-                    this.helper = IDTable.get(((FieldDecl) d).className);
-                } else {
-                    this.methodCalls = d;
-                    this.helper = new Stack<>();
-                }
-
-                if (d.type.typeKind == TypeKind.INT || d.type.typeKind == TypeKind.BOOLEAN) {
-                    return new BaseType(d.type.typeKind, null);
-                } else if (d.type.typeKind == TypeKind.CLASS) {
-                    return new ClassType(((ClassType) d.type).className, null);
-                } else if (d.type.typeKind == TypeKind.CLASS) {
-                    if (((ArrayType) (d.type)).eltType.typeKind == TypeKind.CLASS) {
-                        return new ArrayType(
-                                new ClassType(((ClassType) ((ArrayType) d.type).eltType).className, null),
-                                null);
-                    }
-                    return new ArrayType(new BaseType(((ArrayType) (d.type)).eltType.typeKind, null), null);
-                } else if (d.type.typeKind == TypeKind.VOID) {
-                    return d.type;
-                } else {
-                    return new BaseType(TypeKind.UNSUPPORTED, null);
-                }
+        Declaration d = this.helper.get(id);
+        if (d != null) {
+            if (d.toString().equals("FieldDecl")) {
+                this.helper = IDTable.get(((FieldDecl) d).className);
+            } else {
+                this.methodCalls = d;
+                this.helper = new MemberTable();
             }
+
+            return d.type;
         }
 
         reportTypeError(ref, "Variable Not Found");
-        return new BaseType(TypeKind.UNSUPPORTED, null);
+        return types.base(TypeKind.UNSUPPORTED);
     }
 
     @Override
@@ -609,8 +521,8 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
         TypeDenoter idDenoter = ref.id.visit(this, arg);
 
         if (refDenoter.typeKind != TypeKind.CLASS) {
-            reportTypeError(refDenoter, "Reference must be a class type");
-            return new BaseType(TypeKind.UNSUPPORTED, null);
+            reportTypeError(ref, "Reference must be a class type");
+            return types.base(TypeKind.UNSUPPORTED);
         }
 
         return idDenoter;
@@ -621,58 +533,40 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
         if (this.helper == null) {
              if (this.qRefFlag && IDTable.containsKey(id.spelling)) {
                  this.helper = IDTable.get(id.spelling);
-                return new ClassType(id, null);
+                return types.classType(id.spelling);
             } else {
-                for (Declaration d : localDeclMap) {
-                    if (d.name.equals(id.spelling)) {
-                        this.helper = this.IDTable.get(((VarDecl) d).className);
-                        return d.type;
-                    }
+                Declaration d = localDeclMap.get(id.spelling);
+                if (d != null) {
+                    this.helper = this.IDTable.get(((VarDecl) d).className);
+                    return d.type;
                 }
 
-                for (Declaration d : IDTable.get(currClass)) {
-                    if (d.name.equals(id.spelling)) {
-                        if (d.toString().equals("FieldDecl")) {
-                            this.helper = this.IDTable.get(((FieldDecl) d).className);
-                        } else {
-                            this.methodCalls = d;
-                            this.helper = new Stack<>();
-                        }
-                        return d.type;
-                    }
-                }
-            }
-        } else {
-            for (Declaration d : this.helper) {
-                if (d.name.equals(id.spelling)) {
+                d = IDTable.get(currClass).get(id.spelling);
+                if (d != null) {
                     if (d.toString().equals("FieldDecl")) {
-                        this.helper = IDTable.get(((FieldDecl) d).className);
+                        this.helper = this.IDTable.get(((FieldDecl) d).className);
                     } else {
                         this.methodCalls = d;
-                        this.helper = new Stack<>();
-                    }
-
-                    if (d.type.typeKind == TypeKind.INT || d.type.typeKind == TypeKind.BOOLEAN) {
-                        return new BaseType(d.type.typeKind, null);
-                    } else if (d.type.typeKind == TypeKind.CLASS) {
-                        return new ClassType(((ClassType) d.type).className, null);
-                    } else if (d.type.typeKind == TypeKind.ARRAY) {
-                        if (((ArrayType) (d.type)).eltType.typeKind == TypeKind.CLASS) {
-                            return new ArrayType(
-                                    new ClassType(((ClassType) ((ArrayType) d.type).eltType).className, null),
-                                    null);
-                        }
-                        return new ArrayType(new BaseType(((ArrayType) (d.type)).eltType.typeKind, null), null);
-                    } else if (d.type.typeKind == TypeKind.VOID) {
-                        return d.type;
-                    } else {
-                        return new BaseType(TypeKind.UNSUPPORTED, null);
+                        this.helper = new MemberTable();
                     }
+                    return d.type;
+                }
+            }
+        } else {
+            Declaration d = this.helper.get(id.spelling);
+            if (d != null) {
+                if (d.toString().equals("FieldDecl")) {
+                    this.helper = IDTable.get(((FieldDecl) d).className);
+                } else {
+                    this.methodCalls = d;
+                    this.helper = new MemberTable();
                 }
+
+                return d.type;
             }
         }
 
-        return new BaseType(TypeKind.UNSUPPORTED, null);
+        return types.base(TypeKind.UNSUPPORTED);
     }
 
     @Override
@@ -682,16 +576,16 @@ public class TypeChecking implements Visitor<Object, TypeDenoter> {
 
     @Override
     public TypeDenoter visitIntLiteral(IntLiteral num, Object arg) {
-        return new BaseType(TypeKind.INT, null);
+        return types.base(TypeKind.INT);
     }
 
     @Override
     public TypeDenoter visitBooleanLiteral(BooleanLiteral bool, Object arg) {
-        return new BaseType(TypeKind.BOOLEAN, null);
+        return types.base(TypeKind.BOOLEAN);
     }
 
     @Override
     public TypeDenoter visitNullLiteral(NullLiteral bool, Object arg) {
-        return new BaseType(TypeKind.NULL, null);
+        return types.base(TypeKind.NULL);
     }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package miniJava.ContextualAnalysis;
+
+import miniJava.AbstractSyntaxTrees.ArrayType;
+import miniJava.AbstractSyntaxTrees.BaseType;
+import miniJava.AbstractSyntaxTrees.ClassType;
+import miniJava.AbstractSyntaxTrees.Identifier;
+import miniJava.AbstractSyntaxTrees.TypeDenoter;
+import miniJava.AbstractSyntaxTrees.TypeKind;
+import miniJava.SyntacticAnalyzer.Token;
+import miniJava.SyntacticAnalyzer.TokenType;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Hands out a single TypeDenoter for every type, so two types are the same
+// exactly when they are the same object. Class types are found by class name
+// and array types by their (already canonical) element type.
+class TypeTable {
+    private Map<TypeKind, BaseType> baseTypes = new EnumMap<>(TypeKind.class);
+    private Map<String, ClassType> classTypes = new HashMap<>();
+    private Map<TypeDenoter, ArrayType> arrayTypes = new IdentityHashMap<>();
+
+    public BaseType base(TypeKind kind) {
+        BaseType type = baseTypes.get(kind);
+
+        if (type == null) {
+            type = new BaseType(kind, null);
+            baseTypes.put(kind, type);
+        }
+        return type;
+    }
+
+    public ClassType classType(String name) {
+        ClassType type = classTypes.get(name);
+
+        if (type == null) {
+            type = new ClassType(new Identifier(new Token(TokenType.Identifier, name, null)), null);
+            classTypes.put(name, type);
+        }
+        return type;
+    }
+
+    public ArrayType arrayOf(TypeDenoter eltType) {
+        eltType = canonical(eltType);
+        ArrayType type = arrayTypes.get(eltType);
+
+        if (type == null) {
+            type = new ArrayType(eltType, null);
+            arrayTypes.put(eltType, type);
+        }
+        return type;
+    }
+
+    // The canonical instance of a type the parser built
+    public TypeDenoter canonical(TypeDenoter type) {
+        switch (type.typeKind) {
+            case CLASS:
+                return classType(((ClassType) type).className.spelling);
+            case ARRAY:
+                return arrayOf(((ArrayType) type).eltType);
+            default:
+                return base(type.typeKind);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package miniJava;
+
+// Maps every spelling the compiler sees to one canonical String, so the
+//  scanner only builds a String the first time a spelling turns up. The
+//  symbol tables of the later phases stay keyed on those Strings.
+//
+// The table is the interner's own, not String.intern(): the JVM's string
+//  table slows down as it fills, and a source with many distinct names
+//  would pay for that on every new spelling.
+public class Interner {
+	// open addressing, null marks an empty slot
+	private String[] _table = new String[512];
+	private int[] _hashes = new int[512];
+	private int _count = 0;
+
+	// Punctuation and one letter names skip the table
+	private final String[] _single = new String[128];
+
+	// Looks the slice buffer[start, end) up without allocating, a String is
+	//  only created the first time a spelling is seen.
+	public String intern(char[] buffer, int start, int end) {
+		if (end - start == 1 && buffer[start] < 128) {
+			char c = buffer[start];
+
+			if (_single[c] == null) {
+				_single[c] = String.valueOf(c);
+			}
+
+			return _single[c];
+		}
+
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + buffer[i];
+		}
+
+		int mask = _table.length - 1;
+		int slot = mix(hash) & mask;
+
+		while (_table[slot] != null) {
+			if (_hashes[slot] == hash && matches(_table[slot], buffer, start, end)) {
+				return _table[slot];
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		String s = new String(buffer, start, end - start);
+		_table[slot] = s;
+		_hashes[slot] = hash;
+
+		if (++_count * 2 > _table.length) {
+			rehash();
+		}
+
+		return s;
+	}
+
+	private boolean matches(String symbol, char[] buffer, int start, int end) {
+		if (symbol.length() != end - start) {
+			return false;
+		}
+
+		for (int i = 0; i < symbol.length(); i++) {
+			if (symbol.charAt(i) != buffer[start + i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void rehash() {
+		String[] oldTable = _table;
+		int[] oldHashes = _hashes;
+		_table = new String[oldTable.length * 2];
+		_hashes = new int[oldTable.length * 2];
+		int mask = _table.length - 1;
+
+		for (int i = 0; i < oldTable.length; i++) {
+			if (oldTable[i] == null) {
+				continue;
+			}
+
+			int slot = mix(oldHashes[i]) & mask;
+			while (_table[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+
+			_table[slot] = oldTable[i];
+			_hashes[slot] = oldHashes[i];
+		}
+	}
+
+	// Short names hash to dense runs of consecutive values, which linear
+	//  probing would pile into one cluster; the multiply scatters them
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
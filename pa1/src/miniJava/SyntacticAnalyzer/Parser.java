@@ -4,6 +4,7 @@ import miniJava.ErrorReporter;
 import miniJava.AbstractSyntaxTrees.*;
 import miniJava.AbstractSyntaxTrees.Package;
 import miniJava.CodeGeneration.CodeGenerator;
+import miniJava.ContextualAnalysis.Binder;
 import miniJava.ContextualAnalysis.Identification;
 import miniJava.ContextualAnalysis.TypeChecking;
 
@@ -34,6 +35,9 @@ public class Parser {
 			TypeChecking typeChecking = new TypeChecking(_errors);
 			typeChecking.parse(prog);
 
+			Binder binder = new Binder();
+			binder.parse(prog);
+
 			CodeGenerator codeGenerator = new CodeGenerator(_errors);
 			codeGenerator.parse(prog);
 
@@ -4,11 +4,15 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import miniJava.ErrorReporter;
+import miniJava.Interner;
 
 public class Scanner {
-	private InputStream _in;
+	private char[] _buffer;
+	private int _pos = 0;
+	private int _charPos = 0;
+	private int _tokenStart = 0;
 	private ErrorReporter _errors;
-	private StringBuilder _currentText;
+	private Interner _interner;
 	private char _currentChar;
 	private TokenMap TokenMap;
 
@@ -19,11 +23,39 @@ public class Scanner {
 	private final static char eolUnix = '\n';
 	private final static char eolWindows = '\r';
 	private final static char tab ='\t';
+
+	// Character classes for the 7-bit range, anything above 127 is OTHER
+	private final static byte OTHER = 0;
+	private final static byte BREAK = 1;
+	private final static byte LETTER = 2;
+	private final static byte DIGIT = 3;
+
+	private final static byte[] charClass = new byte[128];
+
+	static {
+		for (char c : " \n\r\t+-*/<>=!()[]{};,.".toCharArray()) {
+			charClass[c] = BREAK;
+		}
+
+		for (char c = 'a'; c <= 'z'; c++) {
+			charClass[c] = LETTER;
+			charClass[c - 'a' + 'A'] = LETTER;
+		}
+
+		for (char c = '0'; c <= '9'; c++) {
+			charClass[c] = DIGIT;
+		}
+	}
 	
 	public Scanner( InputStream in, ErrorReporter errors ) {
-		this._in = in;
+		this(in, errors, new Interner());
+	}
+
+	public Scanner( InputStream in, ErrorReporter errors, Interner interner ) {
 		this._errors = errors;
+		this._interner = interner;
 		this.TokenMap = new TokenMap();
+		this._buffer = readSource(in);
 		
 		if (!eot) {
 			nextChar();
@@ -37,11 +69,11 @@ public class Scanner {
 
 		ignoreSpace();
 
-		_currentText = new StringBuilder();
+		_tokenStart = _charPos;
 		TokenType kind = scanToken();
-		String spelling = _currentText.toString();
+		String text = _interner.intern(_buffer, _tokenStart, _charPos);
 		
-		return makeToken(kind, spelling);
+		return makeToken(kind, text);
 	}
 
 	public TokenType scanToken() {
@@ -199,8 +231,9 @@ public class Scanner {
 		}
 	}
 	
+	// The spelling is sliced out of _buffer once the token ends, so taking a
+	//  character only has to move past it.
 	private void takeIt() {
-		_currentText.append(_currentChar);
 		nextChar();
 	}
 	
@@ -216,18 +249,12 @@ public class Scanner {
 
 	private TokenType buildToken() {
 		while (!breakLoop() && !eot) {
-			if (_currentChar == '/' && _currentText.charAt(_currentText.length() - 1) == '/') {
-				ignoreSingleLineComment();
-			}
-			else if (_currentChar == '*' && _currentText.charAt(_currentText.length() - 1) == '/') {
-				ignoreMultiLineComment();
-			}
 			takeIt();
 		}
 
-		TokenType type = this.TokenMap.getTokenType(_currentText.toString());
+		TokenType type = this.TokenMap.getTokenType(_buffer, _tokenStart, _charPos);
 
-		if (type == TokenType.Identifier && !Character.isLetter(_currentText.charAt(0))) {
+		if (type == TokenType.Identifier && !isLetter(_buffer[_tokenStart])) {
 			scanError("Invalid Identifier");
 
 			return TokenType.Error;
@@ -236,9 +263,28 @@ public class Scanner {
 		return type;
 	}
 
+	// Pull the whole source in with one bulk read, scanning then works by index
+	//  instead of costing a read() call per character.
+	private char[] readSource(InputStream in) {
+		try {
+			byte[] bytes = in.readAllBytes();
+			char[] source = new char[bytes.length];
+
+			for (int i = 0; i < bytes.length; i++) {
+				source[i] = (char)(bytes[i] & 0xFF);
+			}
+
+			return source;
+		} catch( IOException e ) {
+			_errors.reportError("Scan Error: " + e);
+			return new char[0];
+		}
+	}
+
 	private void nextChar() {
 		try {
-			int c = _in.read();
+			_charPos = _pos;
+			int c = _pos < _buffer.length ? _buffer[_pos++] : -1;
 
 			_currentChar = (char)c;
 
@@ -268,22 +314,23 @@ public class Scanner {
 	}
 
 	private void ignoreSingleLineComment() {
-		_currentText.deleteCharAt(_currentText.length() - 1);
-		
 		while (!eot && (_currentChar != eolUnix && _currentChar != eolWindows)) {
 			skipIt();
 		}
 
 		ignoreSpace();
+		_tokenStart = _charPos;
 	}
 
 	private void ignoreMultiLineComment() {
-		int deleteStart = _currentText.length() - 1;
+		// The '*' of the opening "/*" cannot also close the comment
+		char previous = 0;
 
 		skipIt();
 
-		while (!eot && (_currentChar != '/' || _currentText.charAt(_currentText.length() - 1) != '*')) {
-			takeIt();
+		while (!eot && (_currentChar != '/' || previous != '*')) {
+			previous = _currentChar;
+			skipIt();
 		}
 
 		if (eot) {
@@ -292,24 +339,19 @@ public class Scanner {
 
 		skipIt();
 
-		_currentText.delete(deleteStart, _currentText.length());
-
 		ignoreSpace();
+		_tokenStart = _charPos;
 	}
 
 	private boolean isDigit(char c) {
-		return (c >= '0') && (c <= '9');
+		return c < 128 && charClass[c] == DIGIT;
 	}
 
-	private boolean breakLoop() {
-		char[] breakChars = { ' ', '\n', '\r', '\t', '+', '-', '*', '/', '<', '>', '=', '!', '(', ')', '[', ']', '{', '}', ';', ',', '.' };
-
-		for (char c : breakChars) {
-			if (c == _currentChar) {
-				return true;
-			}
-		}
+	private boolean isLetter(char c) {
+		return c < 128 ? charClass[c] == LETTER : Character.isLetter(c);
+	}
 
-		return false;
+	private boolean breakLoop() {
+		return _currentChar < 128 && charClass[_currentChar] == BREAK;
 	}
 }
@@ -5,6 +5,13 @@ import java.util.Map;
 public class TokenMap {
     private Map<String, TokenType> map;
 
+    // Keywords are matched with a trie over 'a'..'z' so the scanner can classify
+    //  a token straight out of its buffer. Node 0 is the root, a child index of 0
+    //  means there is no such edge.
+    private int[] next;
+    private TokenType[] accept;
+    private int nodes;
+
     public TokenMap() {
         map = new HashMap<>();
 
@@ -24,11 +31,49 @@ public class TokenMap {
         map.put("true", TokenType.Logic);
         map.put("false", TokenType.Logic);
         map.put("null", TokenType.Null);
+
+        int maxNodes = 1;
+        for (String keyword : map.keySet()) {
+            maxNodes += keyword.length();
+        }
+
+        next = new int[maxNodes * 26];
+        accept = new TokenType[maxNodes];
+        nodes = 1;
+
+        for (Map.Entry<String, TokenType> keyword : map.entrySet()) {
+            int node = 0;
+
+            for (char c : keyword.getKey().toCharArray()) {
+                if (next[node * 26 + (c - 'a')] == 0) {
+                    next[node * 26 + (c - 'a')] = nodes++;
+                }
+                node = next[node * 26 + (c - 'a')];
+            }
+
+            accept[node] = keyword.getValue();
+        }
     }
 
-    public TokenType getTokenType(String s) {
-        if (map.containsKey(s)) {
-            return map.get(s);
+    public TokenType getTokenType(char[] buffer, int start, int end) {
+        int node = 0;
+
+        for (int i = start; i < end; i++) {
+            int c = buffer[i] - 'a';
+
+            if (c < 0 || c >= 26) {
+                return TokenType.Identifier;
+            }
+
+            node = next[node * 26 + c];
+
+            if (node == 0) {
+                return TokenType.Identifier;
+            }
+        }
+
+        if (accept[node] != null) {
+            return accept[node];
         }
 
         return TokenType.Identifier;